@@ -1,30 +1,56 @@
 package basic;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+
 public class Basic {
+    private static final String USAGE =
+        "Usage: basic FILE | -\n" +
+        "       basic --cache DIR FILE          run FILE, reusing its parsed form from DIR if unchanged\n" +
+        "       basic --cache DIR --list        describe the programs cached in DIR\n" +
+        "       basic --cache DIR --evict FILE  drop the cached form of FILE\n" +
+        "       basic --cache DIR --clear       drop everything cached in DIR";
+
     /**
-     * Main runner for BASIC Lexer. Prints out lexed tokens if no errors occur.
+     * Main runner for BASIC Lexer. Prints out the parsed program if no errors occur.
      * Exits with error if an exception occurs.
-     * @param args Standard command line args, in this case a single filename
+     * @param args Standard command line args, in this case a single filename, or - for stdin.
+     * Files can also be run through a ProgramCache with --cache, see USAGE
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
+        ProgramCache cache = null;
+        if (args.length >= 2 && args[0].equals("--cache")) {
+            cache = new ProgramCache(Path.of(args[1]));
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        boolean evict = cache != null && args.length == 2 && args[0].equals("--evict");
+        if (args.length != 1 && !evict) {
             System.err.println("Invalid argument count. You must provide a filename and only a filename.");
+            System.err.println(USAGE);
             System.exit(1);
         }
         try {
-            System.out.println("Peforming lexer step:");
-            Lexer lex = new Lexer(args[0]);
-            var tokens = lex.lex();
-            for (Token t: tokens)
-                System.out.print(t);
+            if (cache != null && args[0].startsWith("--")) {
+                manage(cache, args);
+                return;
+            }
 
-            System.out.println("Peforming parser step:");
-            Parser p = new Parser(tokens);
-            var ast = p.parse();
+            StatementsNode ast;
+            Program program = null;
+            System.out.println("Peforming lexer and parser step:");
+            if (cache != null && !args[0].equals("-")) {
+                program = cache.load(Path.of(args[0]));
+                ast = program.getAST();
+            }
+            else { // lexing happens as the parser asks for tokens
+                Lexer lex = args[0].equals("-") ? new Lexer(System.in) : new Lexer(args[0]);
+                Parser p = new Parser(lex);
+                ast = p.parse();
+            }
             System.out.print(ast.toString());
 
             System.out.println("Interpreting the program:");
-            Interpreter i = new Interpreter(ast);
+            Interpreter i = program != null ? new Interpreter(program) : new Interpreter(ast);
             i.interpret();
         }
         catch (Exception x) { // Just so running like this doesn't vomit ugly exceptions
@@ -33,4 +59,26 @@ public class Basic {
             System.exit(1);
         }
     }
+
+    /** Runs one of the cache maintenance options
+     * @param cache the cache given with --cache
+     * @param args the option and its argument
+     */
+    private static void manage(ProgramCache cache, String[] args) throws Exception {
+        switch (args[0]) {
+            case "--list":
+                for (String entry : cache.list())
+                    System.out.println(entry);
+                break;
+            case "--evict":
+                System.out.println(cache.evict(Path.of(args[1])) ? "Evicted " + args[1] : args[1] + " wasn't cached");
+                break;
+            case "--clear":
+                System.out.println("Removed " + cache.clear() + " cached programs");
+                break;
+            default:
+                System.err.println(USAGE);
+                System.exit(1);
+        }
+    }
 }
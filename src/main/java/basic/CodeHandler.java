@@ -1,25 +1,81 @@
 package basic;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
- * Handles reading for a single inputted filename
+ * Handles reading for a single inputted filename or stream
+ * Small files are read into memory, large ones are memory mapped and decoded
+ * as UTF-8 on demand so heap use stays flat regardless of file size.
+ * Files read into memory are only decoded if they aren't plain ascii, which
+ * nearly all programs are, so those are read straight from their bytes.
+ * Streams are read into a window that only keeps what hasn't been released yet.
+ * Source offsets are ints here and in the TokenBuffer, so a source can be at most 2 GB
  */
 public class CodeHandler {
+    // files at least this big are mapped instead of read into a String
+    static final long MAP_THRESHOLD = 64L << 20;
+
+    // kinds of run that ascii files can skip over 8 bytes at a time, see run()
+    static final int SPACES = 0;
+    static final int NAME = 1; // letters, digits and _
+    static final int LITERAL = 2; // anything but " \ \r and \n
+
+    // reads 8 bytes of a byte[] as one long, first byte lowest
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH = 0x8080808080808080L;
+
     private String content;
-    private int index;
+    private byte[] ascii; // in memory files with no non-ascii bytes, read without decoding
+    private ByteBuffer bytes; // mapped/streamed mode only, undecoded UTF-8
+    private InputStream stream; // streamed mode only, null once it runs out
+    private int base; // streamed mode only, source offset of the first byte still in bytes
+    private int index; // char index into content or ascii, or byte offset into the source
+    private boolean low; // mapped/streamed mode only, read head is on the low half of a surrogate pair
 
-    /** Creates CodeHandler
+    /** Creates CodeHandler, mapping the file if it is larger than MAP_THRESHOLD
      * @param filename string path to input file
      * @throws IOException on invalid file
      */
     public CodeHandler(String filename) throws IOException {
+        this(filename, size(filename) >= MAP_THRESHOLD);
+    }
+
+    /** Creates CodeHandler
+     * @param filename string path to input file
+     * @param mapped true to memory map the file rather than reading it into the heap
+     * @throws IOException on invalid file, or one over 2 GB
+     */
+    public CodeHandler(String filename, boolean mapped) throws IOException {
         Path fileLoc = Paths.get(filename);
         try {
-            content = new String(Files.readAllBytes(fileLoc));
+            if (mapped) {
+                try (var channel = FileChannel.open(fileLoc, StandardOpenOption.READ)) {
+                    if (channel.size() > Integer.MAX_VALUE)
+                        throw new IOException("Source files are limited to 2 GB: " + filename);
+                    bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+            else {
+                byte[] data = Files.readAllBytes(fileLoc);
+                if (isAscii(data))
+                    ascii = data;
+                else
+                    content = new String(data, StandardCharsets.UTF_8);
+            }
         } catch (IOException x) {
             System.err.format("IOException: %s%n", x);
             throw x;
@@ -27,12 +83,102 @@ public class CodeHandler {
         index = 0;
     }
 
+    /** Creates CodeHandler reading from a stream, such as System.in
+     * Bytes are pulled from the stream only as the read head reaches them
+     * @param stream the stream to read, it is not closed
+     */
+    public CodeHandler(InputStream stream) {
+        this.stream = stream;
+        bytes = ByteBuffer.allocate(8192).limit(0);
+        base = 0;
+        index = 0;
+    }
+
+    /** Creates a second read head over the same file, for lexing parts of it in parallel
+     * @param other CodeHandler of a file, streams can't be shared
+     * @param index source offset the new read head starts at
+     */
+    CodeHandler(CodeHandler other, int index) {
+        if (other.stream != null)
+            throw new IllegalArgumentException("Streams can't be shared");
+        this.content = other.content;
+        this.ascii = other.ascii;
+        this.bytes = other.bytes == null ? null : other.bytes.duplicate();
+        this.index = index;
+    }
+
+    private CodeHandler() {
+    }
+
+    /** Creates CodeHandler over text that is already in memory, such as an editor buffer
+     * @param text the source text
+     * @return CodeHandler reading text from its start
+     */
+    public static CodeHandler ofText(String text) {
+        var out = new CodeHandler();
+        out.content = text;
+        out.index = 0;
+        return out;
+    }
+
+    /** Applies an edit to the source text, for re-lexing after a change
+     * @param offset source offset the edit starts at
+     * @param removed number of chars removed from offset
+     * @param inserted text inserted at offset
+     * @return a new CodeHandler reading the edited text from its start
+     * @throws IllegalArgumentException if the source wasn't read into memory
+     */
+    public CodeHandler edit(int offset, int removed, String inserted) {
+        if (content == null && ascii == null)
+            throw new IllegalArgumentException("Only sources read into memory can be edited");
+        String text = content != null ? content : substring(0, ascii.length);
+        return ofText(text.substring(0, offset) + inserted + text.substring(offset + removed));
+    }
+
+    /**
+     * @param data file contents
+     * @return true if every byte is ascii, which makes the UTF-8 the same as its chars
+     */
+    private static boolean isAscii(byte[] data) {
+        int at = 0;
+        for (; at + 8 <= data.length; at += 8)
+            if (((long) LONGS.get(data, at) & HIGH) != 0)
+                return false;
+        for (; at < data.length; at++)
+            if (data[at] < 0)
+                return false;
+        return true;
+    }
+
+    private static long size(String filename) throws IOException {
+        try {
+            return Files.size(Paths.get(filename));
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+            throw x;
+        }
+    }
+
     /**
      * @param i Index relative to read head to return
      * @return char at i chars after read head
      */
     public char peek(int i) {
-        return content.charAt(index + i);
+        if (ascii != null)
+            return (char) ascii[index + i];
+        if (bytes == null)
+            return content.charAt(index + i);
+        int at = index;
+        boolean half = low;
+        for (; i > 0; i--) {
+            if (!half && codePointAt(at) >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                half = true;
+            else {
+                at += width(at);
+                half = false;
+            }
+        }
+        return charAt(at, half);
     }
 
     /**
@@ -40,7 +186,14 @@ public class CodeHandler {
      * @return string up to i chars after read head
      */
     public String peekString(int i) {
-        return content.substring(index, index + i);
+        if (ascii != null)
+            return substring(index, index + i);
+        if (bytes == null)
+            return content.substring(index, index + i);
+        var out = new StringBuilder(i);
+        for (int j = 0; j < i; j++)
+            out.append(peek(j));
+        return out.toString();
     }
 
     /**
@@ -48,27 +201,294 @@ public class CodeHandler {
      * @return char at read head
      */
     public char getChar() {
-        return content.charAt(index++);
+        if (ascii != null)
+            return (char) ascii[index++];
+        if (bytes == null)
+            return content.charAt(index++);
+        char out = charAt(index, low);
+        swallow();
+        return out;
     }
 
     /**
      * @modifies read head is moved forwards by one
      */
     public void swallow() {
-        index++; 
+        if (ascii != null) {
+            if (index == ascii.length)
+                throw new IndexOutOfBoundsException(index);
+            index++;
+            return;
+        }
+        if (bytes == null) {
+            index++;
+            return;
+        }
+        if (!available(index))
+            throw new IndexOutOfBoundsException(index);
+        if (!low && codePointAt(index) >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            low = true;
+        else {
+            index += width(index);
+            low = false;
+        }
     }
 
     /**
      * @return true if read head is at end of file
      */
     public boolean isDone() {
-        return index == content.length();
+        if (ascii != null)
+            return index == ascii.length;
+        if (bytes == null)
+            return index == content.length();
+        return !available(index);
+    }
+
+    /** Measures a run of similar chars at the read head without reading them one at a time.
+     * Only ascii files are scanned this way, 8 bytes per step, everything else gives 0
+     * and is left to the char at a time path
+     * @param kind SPACES, NAME or LITERAL
+     * @return number of chars from the read head up to the first one not in the run
+     */
+    public int run(int kind) {
+        if (ascii == null)
+            return 0;
+        int at = index;
+        for (; at + 8 <= ascii.length; at += 8) {
+            long stop = stops((long) LONGS.get(ascii, at), kind);
+            if (stop != 0)
+                return at + (Long.numberOfTrailingZeros(stop) >>> 3) - index;
+        }
+        long tail = '\n' * ONES; // a newline ends every kind of run
+        for (int i = 0; at + i < ascii.length; i++)
+            tail = (tail & ~(0xFFL << (i * 8))) | ((long) ascii[at + i] << (i * 8));
+        return at + (Long.numberOfTrailingZeros(stops(tail, kind)) >>> 3) - index;
+    }
+
+    /**
+     * @param x 8 ascii bytes, first byte lowest
+     * @param kind SPACES, NAME or LITERAL
+     * @return the high bit of every byte that ends the run set. Only the lowest set bit is reliable
+     */
+    private static long stops(long x, int kind) {
+        switch (kind) {
+            case SPACES:
+                return ~(equal(x, ' ') | equal(x, '\t')) & HIGH;
+            case NAME:
+                return ~(between(x, 'a', 'z') | between(x, 'A', 'Z') | between(x, '0', '9') | equal(x, '_')) & HIGH;
+            default:
+                return equal(x, '"') | equal(x, '\\') | equal(x, '\r') | equal(x, '\n');
+        }
+    }
+
+    /**
+     * @return high bit set in every byte of x that is c
+     */
+    private static long equal(long x, char c) {
+        long y = x ^ (c * ONES);
+        return ~(((y & LOW) + LOW) | y | LOW);
+    }
+
+    /**
+     * @return high bit set in every byte of x, all ascii, from low to high inclusive
+     */
+    private static long between(long x, char low, char high) {
+        return ((127 + high + 1) * ONES - x) & ~x & (x + (127 - low + 1) * ONES) & HIGH;
+    }
+
+    /** Moves the read head over a run measured by run()
+     * @param n number of chars to move
+     * @modifies read head is moved forwards by n
+     */
+    public void skip(int n) {
+        if (ascii != null && index + n <= ascii.length)
+            index += n;
+        else
+            for (; n > 0; n--)
+                swallow();
+    }
+
+    /**
+     * @return position of the read head, usable as an offset for substring
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @param start offset of the first char, as given by getIndex
+     * @param end offset one past the last char, as given by getIndex
+     * @return the source text between the two offsets
+     */
+    public String substring(int start, int end) {
+        if (ascii != null) // ascii is a subset of latin 1, which strings store as plain bytes
+            return new String(ascii, start, end - start, StandardCharsets.ISO_8859_1);
+        if (bytes == null)
+            return content.substring(start, end);
+        if (end > start && !available(end - 1))
+            throw new IndexOutOfBoundsException(end);
+        return StandardCharsets.UTF_8.decode(bytes.slice(start - base, end - start)).toString();
+    }
+
+    /** Compares source text to a name without building a String, carriage returns are skipped
+     * @param start offset of the first char, as given by getIndex
+     * @param end offset one past the last char, as given by getIndex
+     * @param name the text to compare against
+     * @return true if the source text between the offsets is name
+     */
+    public boolean matches(int start, int end, String name) {
+        if (bytes != null)
+            return substring(start, end).replace("\r", "").equals(name);
+        int j = 0;
+        for (int i = start; i < end; i++) {
+            char c = ascii != null ? (char) ascii[i] : content.charAt(i);
+            if (c == '\r')
+                continue;
+            if (j == name.length() || c != name.charAt(j++))
+                return false;
+        }
+        return j == name.length();
+    }
+
+    /**
+     * @return true if this reads from a stream rather than a file
+     */
+    public boolean isStream() {
+        return stream != null;
+    }
+
+    /**
+     * @param offset source offset to search from
+     * @return source offset of the start of the first line beginning after offset,
+     * or -1 if there is no later line
+     */
+    public int nextLine(int offset) {
+        if (ascii != null) {
+            for (int at = offset; at < ascii.length; at++)
+                if (ascii[at] == '\n')
+                    return at + 1;
+            return -1;
+        }
+        if (bytes == null) {
+            int newline = content.indexOf('\n', offset);
+            return newline < 0 ? -1 : newline + 1;
+        }
+        for (int at = offset; available(at); at++) // '\n' is never part of a longer UTF-8 sequence
+            if (bytes.get(at - base) == '\n')
+                return at + 1;
+        return -1;
+    }
+
+    /** Lets a streamed CodeHandler forget everything before offset
+     * Does nothing for files, which are kept whole
+     * @param offset source offset that substring will never again be called below
+     */
+    public void release(int offset) {
+        if (stream == null || offset - base < bytes.capacity() / 2)
+            return;
+        bytes.position(offset - base);
+        bytes.compact().flip();
+        base = offset;
     }
 
     /**
      * @return rest of file starting at read head position
      */
     public String remainder() {
-        return content.substring(index);
+        if (ascii != null)
+            return substring(index, ascii.length);
+        if (bytes == null)
+            return content.substring(index);
+        while (available(base + bytes.limit())); // pull in the rest of a stream
+        var rest = StandardCharsets.UTF_8.decode(bytes.slice(index - base, bytes.limit() - (index - base))).toString();
+        return low ? rest.substring(1) : rest;
+    }
+
+    /** Mapped mode char lookup
+     * @param at byte offset of the start of a UTF-8 sequence
+     * @param half true for the low surrogate of a supplementary code point
+     * @return char at the given position
+     */
+    private char charAt(int at, boolean half) {
+        int cp = codePointAt(at);
+        if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            return (char) cp;
+        return half ? Character.lowSurrogate(cp) : Character.highSurrogate(cp);
+    }
+
+    /** Decodes a single UTF-8 sequence. Malformed input decodes to U+FFFD
+     * @param at byte offset of the start of a UTF-8 sequence
+     * @return code point starting at at
+     */
+    private int codePointAt(int at) {
+        int b = byteAt(at);
+        if (b >= 0) // ascii, nearly every character we see
+            return b;
+        int n = width(at);
+        if (n == 1)
+            return 0xFFFD;
+        int cp = b & (0xFF >> (n + 1));
+        for (int i = 1; i < n; i++)
+            cp = (cp << 6) | (byteAt(at + i) & 0x3F);
+        return cp;
+    }
+
+    /**
+     * @param at byte offset of the start of a UTF-8 sequence
+     * @return byte length of the sequence, 1 for ascii or malformed input
+     */
+    private int width(int at) {
+        int b = byteAt(at) & 0xFF;
+        int n;
+        if (b < 0xC0) return 1;
+        else if (b < 0xE0) n = 2;
+        else if (b < 0xF0) n = 3;
+        else if (b < 0xF8) n = 4;
+        else return 1;
+        if (!available(at + n - 1))
+            return 1;
+        for (int i = 1; i < n; i++)
+            if ((byteAt(at + i) & 0xC0) != 0x80)
+                return 1;
+        return n;
+    }
+
+    /**
+     * @param at source byte offset
+     * @return the byte at that offset
+     * @throws IndexOutOfBoundsException past the end of the source
+     */
+    private byte byteAt(int at) {
+        if (!available(at))
+            throw new IndexOutOfBoundsException(at);
+        return bytes.get(at - base);
+    }
+
+    /** Checks a byte is in the buffer, reading more of a stream if it isn't yet
+     * @param at source byte offset
+     * @return true if the byte exists, false past the end of the source
+     */
+    private boolean available(int at) {
+        while (at - base >= bytes.limit()) {
+            if (stream == null)
+                return false;
+            if (bytes.limit() == bytes.capacity()) {
+                var bigger = ByteBuffer.allocate(bytes.capacity() * 2);
+                bigger.put(bytes.position(0)).flip();
+                bytes = bigger;
+            }
+            try {
+                int read = stream.read(bytes.array(), bytes.limit(), bytes.capacity() - bytes.limit());
+                if (read < 0)
+                    stream = null;
+                else
+                    bytes.limit(bytes.limit() + read);
+            } catch (IOException x) {
+                System.err.format("IOException: %s%n", x);
+                throw new UncheckedIOException(x);
+            }
+        }
+        return true;
     }
 }
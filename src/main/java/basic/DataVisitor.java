@@ -1,10 +1,12 @@
 package basic;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 public class DataVisitor implements NodeVisitor {
-    private LinkedList<Node> data;
+    private ArrayList<Node> data;
     public DataVisitor() {
-        data = new LinkedList<>();
+        data = new ArrayList<>();
     }
 
     public void visit(Node n) throws Exception {
@@ -14,8 +16,19 @@ public class DataVisitor implements NodeVisitor {
             visit((LabeledStatementNode) n);
     }
 
-    public Node pop() {
-        return data.pop();
+    /**
+     * @return the DATA pool, in the order READ takes from it. It isn't changed by running
+     * the program, each run keeps its own place in it
+     */
+    public List<Node> getData() {
+        return Collections.unmodifiableList(data);
+    }
+
+    /**
+     * @param n DATA item to add to the end of the pool, for programs loaded from a ProgramCache
+     */
+    void add(Node n) {
+        data.add(n);
     }
 
     public void visit(LabeledStatementNode n) throws Exception {
@@ -0,0 +1,497 @@
+package basic;
+
+import static basic.FlatProgram.*;
+
+import basic.BooleanNode.Comparison;
+import basic.FunctionNode.Invocation;
+import basic.MathOpNode.Operation;
+import basic.Node.Type;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Runs a FlatProgram straight from its arena, the same way the Interpreter runs the tree.
+ * Statements are offsets, the stack holds offsets, and variables are kept in arrays
+ * indexed by symbol id rather than in maps keyed by name
+ */
+public class FlatInterpreter {
+    private final FlatProgram program;
+    private int data; // next item of the DATA pool
+
+    // to indicate where PRINT and INPUT should output
+    private boolean test;
+    private List<String> ioList;
+    private List<String> fullOutList;
+
+    private int[] stack = new int[16];
+    private int depth;
+
+    // evalInt() and evalFloat() recurse into at most DEEP operations, and use an explicit stack for any deeper
+    private static final int DEEP = 1000;
+    private int nesting;
+
+    // a symbol can have an int and a float value at once, like a name in both of the Interpreter's maps
+    private final int[] intVars;
+    private final boolean[] isInt;
+    private final float[] floatVars;
+    private final boolean[] isFloat;
+    private final String[] stringVars;
+    private final byte[] suffix; // last character of each name, for telling the variable types apart
+
+    protected FlatInterpreter(FlatProgram program, boolean test) {
+        this.program = program;
+        this.test = test;
+        this.fullOutList = new LinkedList<>();
+        int symbols = program.symbols();
+        this.intVars = new int[symbols];
+        this.isInt = new boolean[symbols];
+        this.floatVars = new float[symbols];
+        this.isFloat = new boolean[symbols];
+        this.stringVars = new String[symbols];
+        this.suffix = new byte[symbols];
+        for (int id = 0; id < symbols; id++) {
+            var name = program.string(id);
+            suffix[id] = (byte) (name.isEmpty() ? 0 : name.charAt(name.length() - 1));
+        }
+    }
+
+    protected FlatInterpreter(FlatProgram program) {
+        this(program, false);
+    }
+
+    protected void putIO(List<String> in) {
+        ioList = in;
+    }
+
+    protected List<String> getIO() {
+        return ioList;
+    }
+
+    protected List<String> getFullIO() {
+        return fullOutList;
+    }
+
+    public void interpret() throws Exception {
+        data = 0;
+        depth = 0;
+        nesting = 0;
+        int n = program.size() > 0 ? program.statement(0) : NONE;
+        while (n != NONE) {
+            switch (program.get(n)) {
+                case ASSIGNMENT:
+                    assign(program.get(program.get(n + 2) + 1), program.get(n + 3));
+                    break;
+                case READ:
+                    for (int i = 0; i < program.get(n + 2); i++) {
+                        if (data == program.dataSize())
+                            handleError("Out of DATA for READ");
+                        assign(program.get(program.get(n + 3 + i) + 1), program.data(data++));
+                    }
+                    break;
+                case INPUT:
+                    input(n);
+                    break;
+                case PRINT:
+                    print(n);
+                    break;
+                case IF:
+                    n = evaluateb(program.get(n + 2)) ? program.get(n + 3) : program.get(n + 1);
+                    continue;
+                case LABELED:
+                    n = labeled(n);
+                    continue;
+                case FOR:
+                    n = forLoop(n);
+                    continue;
+                case WHILE:
+                    n = whileLoop(n);
+                    continue;
+                case GOSUB:
+                    push(program.get(n + 1));
+                    n = program.get(n + 2);
+                    continue;
+                case NEXT:
+                    n = next(n);
+                    continue;
+                case RETURN:
+                    if (depth == 0)
+                        handleError("RETURN without GOSUB");
+                    n = stack[--depth];
+                    continue;
+                case END:
+                    return;
+            }
+            n = program.get(n + 1);
+        }
+    }
+
+    private int whileLoop(int n) throws Exception {
+        if (!evaluateb(program.get(n + 2)))
+            return program.get(n + 4);
+        push(n);
+        return program.get(n + 1);
+    }
+
+    private int labeled(int n) throws Exception {
+        if (depth > 0 && stack[depth - 1] != NONE && program.get(stack[depth - 1]) == WHILE) {
+            int back = stack[depth - 1];
+            if (program.get(back + 3) == program.get(n + 2) && evaluateb(program.get(back + 2)))
+                return back;
+        }
+        return program.get(n + 3);
+    }
+
+    private int forLoop(int n) throws Exception {
+        int symbol = program.get(program.get(n + 2) + 1);
+        intVars[symbol] = program.get(n + 3);
+        isInt[symbol] = true;
+        if (program.get(n + 3) > program.get(n + 4))
+            return program.get(program.get(n + 6) + 1);
+        push(n);
+        return program.get(n + 1);
+    }
+
+    private int next(int n) throws Exception {
+        // like the Interpreter, assume the relevant FOR is at the top of the stack
+        int back = depth > 0 ? stack[depth - 1] : NONE;
+        if (back == NONE || program.get(back) != FOR)
+            handleError("NEXT without FOR");
+        int symbol = program.get(program.get(n + 2) + 1);
+        if (!isInt[symbol])
+            handleError("NEXT of unset variable " + program.string(symbol));
+        intVars[symbol] += program.get(back + 5);
+        if (intVars[symbol] > program.get(back + 4))
+            return program.get(n + 1);
+        return program.get(back + 1);
+    }
+
+    private void push(int n) {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = n;
+    }
+
+    private void print(int n) throws Exception {
+        var out = new LinkedList<String>();
+        for (int i = 0; i < program.get(n + 2); i++) {
+            int x = program.get(n + 3 + i);
+            int kind = program.get(x);
+            var type = type(x);
+            if (kind == STRING)
+                out.add(program.string(program.get(x + 1)));
+            else if (kind == VARIABLE && type == Type.STRING)
+                out.add(stringVars[program.get(x + 1)]);
+            else if (type == Type.INT)
+                out.add(Integer.toString(evalInt(x)));
+            else if (type == Type.FLOAT)
+                out.add(Float.toString(evalFloat(x)));
+            else
+                handleError("Can't print expression at " + x);
+        }
+        ioList = out;
+        fullOutList.addAll(ioList);
+        if (!test) {
+            for (String x : ioList)
+                System.out.print(x);
+            System.out.println();
+        }
+    }
+
+    private void input(int n) throws Exception {
+        int prompt = program.get(n + 2);
+        int value = program.get(prompt + 1);
+        System.out.println(program.get(prompt) == VARIABLE ? stringVars[value] : program.string(value));
+
+        int count = program.get(n + 3);
+        if (!test) {
+            ioList = new LinkedList<String>();
+            Scanner s = new Scanner(System.in);
+            for (int i = 0; i < count; i++)
+                ioList.add(s.nextLine());
+        }
+        for (int i = 0; i < count; i++) {
+            int symbol = program.get(program.get(n + 4 + i) + 1);
+            String in = ioList.remove(0);
+            if (suffix[symbol] == '%') {
+                floatVars[symbol] = Float.parseFloat(in);
+                isFloat[symbol] = true;
+            }
+            else if (suffix[symbol] == '$')
+                stringVars[symbol] = in;
+            else {
+                intVars[symbol] = Integer.parseInt(in);
+                isInt[symbol] = true;
+            }
+        }
+    }
+
+    /**
+     * @param symbol variable to assign
+     * @param value offset of the expression to assign it
+     */
+    private void assign(int symbol, int value) throws Exception {
+        if (suffix[symbol] == '%') {
+            if (type(value) == Type.STRING)
+                handleError("Invalid float assignment to " + program.string(symbol) + "\n");
+            floatVars[symbol] = evalFloat(value);
+            isFloat[symbol] = true;
+        }
+        else if (suffix[symbol] == '$') {
+            if (program.get(value) != STRING)
+                handleError("Invalid string assignment to " + program.string(symbol) + "\n");
+            stringVars[symbol] = program.string(program.get(value + 1));
+        }
+        else {
+            if (type(value) != Type.INT)
+                handleError("Invalid int assignment to " + program.string(symbol) + "\n");
+            intVars[symbol] = evalInt(value);
+            isInt[symbol] = true;
+        }
+    }
+
+    /**
+     * @param at offset of an expression
+     * @return its type, the same one the TypeVisitor gives the node it was flattened from
+     */
+    private Type type(int at) {
+        switch (program.get(at)) {
+            case INTEGER:
+                return Type.INT;
+            case FLOAT:
+                return Type.FLOAT;
+            case VARIABLE:
+                int symbol = program.get(at + 1);
+                return suffix[symbol] == '%' ? Type.FLOAT : suffix[symbol] == '$' ? Type.STRING : Type.INT;
+            case MATHOP:
+                return TYPES[program.get(at + 4)];
+            case FUNCTION:
+                switch (INVOCATIONS[program.get(at + 1)]) {
+                    case Invocation.RANDOM:
+                    case Invocation.VAL:
+                        return Type.INT;
+                    case Invocation.VALF:
+                        return Type.FLOAT;
+                }
+        }
+        return Type.STRING;
+    }
+
+    /**
+     * Processes an INT expression
+     * @param at offset of the expression
+     * @return its value
+     * @throws Exception if it isn't an INT expression or reads an unset variable
+     */
+    private int evalInt(int at) throws Exception {
+        if (type(at) != Type.INT)
+            handleError("Not an int expression");
+        switch (program.get(at)) {
+            case INTEGER:
+                return program.get(at + 1);
+            case VARIABLE:
+                int symbol = program.get(at + 1);
+                if (!isInt[symbol])
+                    handleError("Unset variable " + program.string(symbol));
+                return intVars[symbol];
+            case FUNCTION:
+                return intFunction(at);
+        }
+        if (nesting >= DEEP)
+            return deepInt(at);
+        nesting++;
+        int left = evalInt(program.get(at + 2));
+        int right = evalInt(program.get(at + 3));
+        nesting--;
+        return operate(program.get(at + 1), left, right);
+    }
+
+    /** Evaluates an INT operation too deeply nested to recurse into, operands first from an explicit stack
+     * @param at offset of the operation
+     * @return its value
+     */
+    private int deepInt(int at) throws Exception {
+        var order = postOrder(at);
+        var values = new int[order.length];
+        int size = 0;
+        for (int n : order) {
+            if (program.get(n) == MATHOP) {
+                size--;
+                values[size - 1] = operate(program.get(n + 1), values[size - 1], values[size]);
+            }
+            else {
+                values[size++] = evalInt(n);
+            }
+        }
+        return values[0];
+    }
+
+    private static int operate(int operation, int left, int right) throws Exception {
+        switch (OPERATIONS[operation]) {
+            case Operation.ADD:
+                return left + right;
+            case Operation.SUBTRACT:
+                return left - right;
+            case Operation.DIVIDE:
+                return left / right;
+            case Operation.MULTIPLY:
+                return left * right;
+        }
+        handleError("Bad operation");
+        return 0; // this should never happen
+    }
+
+    /**
+     * Processes an INT or FLOAT expression in floats throughout, like the Interpreter
+     * @param at offset of the expression
+     * @return its value
+     * @throws Exception if it isn't a number or reads an unset variable
+     */
+    private float evalFloat(int at) throws Exception {
+        var type = type(at);
+        if (type == Type.STRING)
+            handleError("Not a float expression");
+        switch (program.get(at)) {
+            case FLOAT:
+                return Float.intBitsToFloat(program.get(at + 1));
+            case INTEGER:
+                return program.get(at + 1);
+            case VARIABLE:
+                int symbol = program.get(at + 1);
+                if (isFloat[symbol])
+                    return floatVars[symbol];
+                if (!isInt[symbol])
+                    handleError("Unset variable " + program.string(symbol));
+                return intVars[symbol];
+            case FUNCTION:
+                if (type == Type.INT)
+                    return intFunction(at);
+                return Interpreter.valf(argument(at, "val%"));
+        }
+        if (nesting >= DEEP)
+            return deepFloat(at);
+        nesting++;
+        float left = evalFloat(program.get(at + 2));
+        float right = evalFloat(program.get(at + 3));
+        nesting--;
+        return operate(program.get(at + 1), left, right);
+    }
+
+    /** Evaluates an INT or FLOAT operation too deeply nested to recurse into, in floats like evalFloat()
+     * @param at offset of the operation
+     * @return its value
+     */
+    private float deepFloat(int at) throws Exception {
+        var order = postOrder(at);
+        var values = new float[order.length];
+        int size = 0;
+        for (int n : order) {
+            if (program.get(n) == MATHOP) {
+                size--;
+                values[size - 1] = operate(program.get(n + 1), values[size - 1], values[size]);
+            }
+            else {
+                values[size++] = evalFloat(n);
+            }
+        }
+        return values[0];
+    }
+
+    private static float operate(int operation, float left, float right) throws Exception {
+        switch (OPERATIONS[operation]) {
+            case Operation.ADD:
+                return left + right;
+            case Operation.SUBTRACT:
+                return left - right;
+            case Operation.DIVIDE:
+                return left / right;
+            case Operation.MULTIPLY:
+                return left * right;
+        }
+        handleError("Bad operation");
+        return 0; // this should never happen
+    }
+
+    /**
+     * @param at offset of an operation
+     * @return offsets of its operations and operands, each operation after both of its sides and left sides first
+     */
+    private int[] postOrder(int at) {
+        var out = new int[16];
+        int size = 0;
+        var pending = new int[16];
+        int waiting = 0;
+        pending[waiting++] = at;
+        while (waiting > 0) {
+            int n = pending[--waiting];
+            if (size == out.length)
+                out = Arrays.copyOf(out, size * 2);
+            out[size++] = n;
+            if (program.get(n) == MATHOP) {
+                if (waiting + 2 > pending.length)
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                pending[waiting++] = program.get(n + 2);
+                pending[waiting++] = program.get(n + 3);
+            }
+        }
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            int swap = out[i];
+            out[i] = out[j];
+            out[j] = swap;
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    private boolean evaluateb(int at) throws Exception {
+        double leftnum = number(program.get(at + 2));
+        double rightnum = number(program.get(at + 3));
+
+        switch (COMPARISONS[program.get(at + 1)]) {
+            case Comparison.EQUALS:
+                return leftnum == rightnum;
+            case Comparison.NOTEQUALS:
+                return leftnum != rightnum;
+            case Comparison.LESS:
+                return leftnum < rightnum;
+            case Comparison.GREATER:
+                return leftnum > rightnum;
+            case Comparison.LEQ:
+                return leftnum <= rightnum;
+            case Comparison.GEQ:
+                return leftnum >= rightnum;
+        }
+        handleError("Bad boolean");
+        return false; // this should never happen
+    }
+
+    /** Evaluates a number with the evaluator for its type
+     */
+    private double number(int at) throws Exception {
+        if (type(at) == Type.INT)
+            return evalInt(at);
+        return evalFloat(at);
+    }
+
+    private int intFunction(int at) throws Exception {
+        var op = INVOCATIONS[program.get(at + 1)];
+        if (op == Invocation.RANDOM) return Interpreter.random();
+        if (op == Invocation.VAL) return Interpreter.val(argument(at, "val"));
+        handleError("Not an int function");
+        return 0; // this should never happen
+    }
+
+    /**
+     * @return the first argument of a function, which has to be a string literal
+     */
+    private String argument(int at, String function) throws Exception {
+        if (program.get(at + 2) == 0 || program.get(program.get(at + 3)) != STRING)
+            handleError("Invalid input to " + function + "()");
+        return program.string(program.get(program.get(at + 3) + 1));
+    }
+
+    private static void handleError(String msg) throws Exception {
+        System.err.println(msg);
+        throw new Exception();
+    }
+}
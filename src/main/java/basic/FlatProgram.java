@@ -0,0 +1,469 @@
+package basic;
+
+import basic.BooleanNode.Comparison;
+import basic.FunctionNode.Invocation;
+import basic.MathOpNode.Operation;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A prepared program flattened into one arena of ints instead of a graph of nodes,
+ * for very large programs and for many programs loaded at once. Every node is a kind
+ * followed by its operands, children are referred to by their offset in the arena, and
+ * names and string literals live in a string pool at the end. The arena is a little
+ * endian ByteBuffer, so a program written to a file can be mapped back and run by a
+ * FlatInterpreter as is, with nothing to deserialize.
+ *
+ * Statements are [kind, next, ...] where next is the offset of the statement that
+ * follows, or NONE. Jump targets are the offsets of the statements the Program resolved them to:
+ *   ASSIGNMENT variable expression    PRINT count items...     DATA count items...
+ *   READ count variables...           INPUT input count variables...
+ *   FOR variable start end step next  NEXT variable            IF condition target
+ *   WHILE condition label end         GOSUB target             LABELED label statement
+ *   RETURN                            END
+ * Expressions are [kind, ...]:
+ *   INTEGER value    FLOAT bits    STRING string    VARIABLE symbol
+ *   MATHOP operation left right type    BOOLEAN comparison left right
+ *   FUNCTION invocation count arguments...
+ * where type is the ordinal of the Node.Type the TypeVisitor gave it. The other expressions' types
+ * follow from their kind, invocation or variable name.
+ * Labels and symbols are ids into the string pool, whose first entries are the symbol names
+ */
+public class FlatProgram {
+    public static final int FORMAT_VERSION = 3;
+    private static final int MAGIC = 0x42464c54; // "BFLT"
+    static final int NONE = -1;
+
+    // header slots
+    private static final int STATEMENTS = 2; // count, then offset of the statement table
+    private static final int SYMBOLS = 4;
+    private static final int DATA = 5; // count, then offset of the data table
+    private static final int STRINGS = 7; // count, then offset of the string table, then byte offset of the text
+    private static final int HEADER = 10;
+
+    // node kinds
+    static final int ASSIGNMENT = 1;
+    static final int PRINT = 2;
+    static final int DATA_STATEMENT = 3;
+    static final int READ = 4;
+    static final int INPUT = 5;
+    static final int FOR = 6;
+    static final int NEXT = 7;
+    static final int IF = 8;
+    static final int WHILE = 9;
+    static final int GOSUB = 10;
+    static final int LABELED = 11;
+    static final int RETURN = 12;
+    static final int END = 13;
+    static final int INTEGER = 14;
+    static final int FLOAT = 15;
+    static final int STRING = 16;
+    static final int VARIABLE = 17;
+    static final int MATHOP = 18;
+    static final int BOOLEAN = 19;
+    static final int FUNCTION = 20;
+
+    static final Operation[] OPERATIONS = Operation.values();
+    static final Comparison[] COMPARISONS = Comparison.values();
+    static final Invocation[] INVOCATIONS = Invocation.values();
+    static final Node.Type[] TYPES = Node.Type.values();
+
+    private final ByteBuffer buffer;
+    private final IntBuffer arena;
+    private final String[] strings; // decoded from the pool as they're asked for
+
+    private FlatProgram(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.arena = this.buffer.asIntBuffer();
+        if (buffer.capacity() < HEADER * 4 || arena.get(0) != MAGIC || arena.get(1) != FORMAT_VERSION)
+            throw new IOException("Not a flat program of version " + FORMAT_VERSION);
+        this.strings = new String[arena.get(STRINGS)];
+    }
+
+    /** Flattens a prepared program
+     * @param program the program
+     * @return the same program as an arena
+     */
+    public static FlatProgram of(Program program) throws IOException {
+        return new FlatProgram(new Builder(program).build());
+    }
+
+    /** Maps a flat program written by write() straight from its file
+     * @param file the file
+     * @return program that reads its nodes from the mapping
+     * @throws IOException if the file can't be mapped or isn't a flat program
+     */
+    public static FlatProgram map(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new FlatProgram(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param file where to write the arena, which map() can use directly
+     */
+    public void write(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var out = buffer.duplicate().clear();
+            while (out.hasRemaining())
+                channel.write(out);
+        }
+    }
+
+    /**
+     * @param at offset in the arena
+     * @return the int there
+     */
+    int get(int at) {
+        return arena.get(at);
+    }
+
+    /**
+     * @return number of top level statements
+     */
+    public int size() {
+        return arena.get(STATEMENTS);
+    }
+
+    /**
+     * @param i index of a top level statement
+     * @return its offset
+     */
+    int statement(int i) {
+        return arena.get(arena.get(STATEMENTS + 1) + i);
+    }
+
+    /**
+     * @return number of distinct variable and label names, the first string ids
+     */
+    public int symbols() {
+        return arena.get(SYMBOLS);
+    }
+
+    /**
+     * @return number of items in the DATA pool
+     */
+    int dataSize() {
+        return arena.get(DATA);
+    }
+
+    /**
+     * @param i position in the DATA pool
+     * @return offset of the item there
+     */
+    int data(int i) {
+        return arena.get(arena.get(DATA + 1) + i);
+    }
+
+    /**
+     * @param id symbol id or string literal id
+     * @return the name or literal
+     */
+    String string(int id) {
+        if (strings[id] == null) {
+            int entry = arena.get(STRINGS + 1) + id * 2;
+            byte[] text = new byte[arena.get(entry + 1)];
+            buffer.get(arena.get(STRINGS + 2) + arena.get(entry), text);
+            strings[id] = new String(text, StandardCharsets.UTF_8);
+        }
+        return strings[id];
+    }
+
+    /**
+     * @return size of the arena and string pool in bytes
+     */
+    public int bytes() {
+        return buffer.capacity();
+    }
+
+    /** Lays a Program out in an arena */
+    private static class Builder {
+        private final Program program;
+        private int[] code = new int[1024];
+        private int size = HEADER;
+        private final IdentityHashMap<Node,Integer> offsets = new IdentityHashMap<>(); // of statements and DATA items
+        private final SymbolTable symbols = new SymbolTable();
+        private final ArrayList<String> literals = new ArrayList<>();
+        private final HashMap<String,Integer> literalIds = new HashMap<>();
+        private final ArrayList<Integer> literalFields = new ArrayList<>(); // STRING ids still to be moved past the symbols
+        private final IdentityHashMap<Node,List<Integer>> pending = new IdentityHashMap<>(); // fields waiting on a statement
+
+        Builder(Program program) {
+            this.program = program;
+            var names = program.getAST().getSymbols();
+            for (int id = 0; id < names.size(); id++) // keep the program's symbol ids
+                symbols.intern(names.getName(id));
+        }
+
+        ByteBuffer build() throws IOException {
+            var statements = program.getAST().getAST();
+            var tops = new int[statements.size()];
+            int i = 0;
+            for (StatementNode s : statements)
+                tops[i++] = statement(s);
+            for (var entry : pending.entrySet()) // targets that came after the jump
+                for (int field : entry.getValue())
+                    code[field] = offsets.get(entry.getKey());
+            for (var entry : offsets.entrySet()) {
+                if (entry.getKey() instanceof StatementNode) {
+                    var next = ((StatementNode) entry.getKey()).next();
+                    code[entry.getValue() + 1] = next == null ? NONE : offsets.get(next);
+                }
+            }
+
+            var data = program.getData().getData();
+            var pool = new int[data.size()];
+            i = 0;
+            for (Node item : data) {
+                Integer at = offsets.get(item);
+                pool[i++] = at != null ? at : expression(item);
+            }
+
+            // the strings are the symbol names then the literals, now that every name is interned
+            for (int field : literalFields)
+                code[field] += symbols.size();
+            var text = new ArrayList<byte[]>();
+            for (int id = 0; id < symbols.size(); id++)
+                text.add(symbols.getName(id).getBytes(StandardCharsets.UTF_8));
+            for (String literal : literals)
+                text.add(literal.getBytes(StandardCharsets.UTF_8));
+
+            code[0] = MAGIC;
+            code[1] = FORMAT_VERSION;
+            code[STATEMENTS] = tops.length;
+            code[STATEMENTS + 1] = append(tops);
+            code[SYMBOLS] = symbols.size();
+            code[DATA] = pool.length;
+            code[DATA + 1] = append(pool);
+            code[STRINGS] = text.size();
+            var table = new int[text.size() * 2];
+            int bytes = 0;
+            for (int id = 0; id < text.size(); id++) {
+                table[id * 2] = bytes;
+                table[id * 2 + 1] = text.get(id).length;
+                bytes += text.get(id).length;
+            }
+            code[STRINGS + 1] = append(table);
+            code[STRINGS + 2] = size * 4;
+
+            var out = ByteBuffer.allocate(size * 4 + bytes).order(ByteOrder.LITTLE_ENDIAN);
+            out.asIntBuffer().put(code, 0, size);
+            out.position(size * 4);
+            for (byte[] t : text)
+                out.put(t);
+            return out.clear();
+        }
+
+        /**
+         * @param s a statement, top level or labeled
+         * @return its offset
+         */
+        private int statement(StatementNode s) throws IOException {
+            int at;
+            if (s instanceof AssignmentNode) {
+                var a = (AssignmentNode) s;
+                at = add(ASSIGNMENT, NONE, expression(a.getLeft()), expression(a.getRight()));
+            }
+            else if (s instanceof PrintNode) {
+                at = list(PRINT, ((PrintNode) s).getPrints());
+            }
+            else if (s instanceof DataNode) {
+                var items = ((DataNode) s).getData();
+                at = list(DATA_STATEMENT, items);
+                for (int i = 0; i < items.size(); i++)
+                    offsets.put(items.get(i), code[at + 3 + i]);
+            }
+            else if (s instanceof ReadNode) {
+                at = list(READ, ((ReadNode) s).getReads());
+            }
+            else if (s instanceof InputNode) {
+                var input = (InputNode) s;
+                var params = input.getParams();
+                int prompt = expression(input.getInput());
+                var fields = new int[params.size() + 4];
+                fields[0] = INPUT;
+                fields[1] = NONE;
+                fields[2] = prompt;
+                fields[3] = params.size();
+                for (int i = 0; i < params.size(); i++)
+                    fields[i + 4] = expression(params.get(i));
+                at = add(fields);
+            }
+            else if (s instanceof ForNode) {
+                var f = (ForNode) s;
+                at = add(FOR, NONE, expression(f.getVar()), f.getStart(), f.getEnd(), f.getInc(), NONE);
+                target(at + 6, f.getMatching());
+            }
+            else if (s instanceof NextNode) {
+                at = add(NEXT, NONE, expression(((NextNode) s).getVar()));
+            }
+            else if (s instanceof IfNode) {
+                var f = (IfNode) s;
+                at = add(IF, NONE, expression(f.getCondition()), NONE);
+                target(at + 3, f.getJump());
+            }
+            else if (s instanceof WhileNode) {
+                var w = (WhileNode) s;
+                at = add(WHILE, NONE, expression(w.getCondition()), symbol(w.getValue(), w.getSymbol()), NONE);
+                target(at + 4, w.getEnd());
+            }
+            else if (s instanceof GosubNode) {
+                var g = (GosubNode) s;
+                at = add(GOSUB, NONE, NONE);
+                target(at + 2, g.getJump());
+            }
+            else if (s instanceof LabeledStatementNode) {
+                var l = (LabeledStatementNode) s;
+                int inner = statement(l.getStatement());
+                at = add(LABELED, NONE, symbol(l.getLabel(), l.getSymbol()), inner);
+            }
+            else if (s instanceof ReturnNode) {
+                at = add(RETURN, NONE);
+            }
+            else if (s instanceof EndNode) {
+                at = add(END, NONE);
+            }
+            else {
+                throw new IOException("Can't flatten statement " + s);
+            }
+            offsets.put(s, at);
+            return at;
+        }
+
+        /** Points a field at a statement, which may not have been laid out yet
+         * @param field offset of the field
+         * @param label the statement, null if there's none
+         */
+        private void target(int field, StatementNode label) {
+            if (label == null)
+                return;
+            Integer at = offsets.get(label);
+            if (at != null) {
+                code[field] = at;
+                return;
+            }
+            pending.computeIfAbsent(label, l -> new ArrayList<>()).add(field);
+        }
+
+        private int expression(Node n) throws IOException {
+            if (n instanceof IntegerNode)
+                return add(INTEGER, ((IntegerNode) n).getValue());
+            if (n instanceof FloatNode)
+                return add(FLOAT, Float.floatToRawIntBits(((FloatNode) n).getValue()));
+            if (n instanceof StringNode) {
+                int at = add(STRING, literal(((StringNode) n).getValue()));
+                literalFields.add(at + 1);
+                return at;
+            }
+            if (n instanceof VariableNode) {
+                var v = (VariableNode) n;
+                return add(VARIABLE, symbol(v.getValue(), v.getSymbol()));
+            }
+            if (n instanceof MathOpNode)
+                return operation((MathOpNode) n);
+            if (n instanceof BooleanNode) {
+                var b = (BooleanNode) n;
+                int left = expression(b.getLeft());
+                return add(BOOLEAN, b.getOp().ordinal(), left, expression(b.getRight()));
+            }
+            if (n instanceof FunctionNode) {
+                var f = (FunctionNode) n;
+                var args = f.getData();
+                var fields = new int[args.size() + 3];
+                fields[0] = FUNCTION;
+                fields[1] = f.getValue().ordinal();
+                fields[2] = args.size();
+                for (int i = 0; i < args.size(); i++)
+                    fields[i + 3] = expression(args.get(i));
+                return add(fields);
+            }
+            throw new IOException("Can't flatten expression " + n);
+        }
+
+        /** Flattens a math operation from an explicit stack, as operations nest as deeply as generated code likes.
+         * Both sides are flattened before the operation, the same order recursion would give
+         * @return offset of the operation
+         */
+        private int operation(MathOpNode n) throws IOException {
+            var pending = new ArrayList<MathOpNode>(); // operations waiting for their sides
+            var lefts = new int[16]; // offset of each one's left side, or NONE while it's being flattened
+            Node at = n;
+            while (true) {
+                while (at instanceof MathOpNode) {
+                    if (pending.size() == lefts.length)
+                        lefts = Arrays.copyOf(lefts, lefts.length * 2);
+                    lefts[pending.size()] = NONE;
+                    pending.add((MathOpNode) at);
+                    at = ((MathOpNode) at).getLeft();
+                }
+                int done = expression(at);
+                while (true) {
+                    int top = pending.size() - 1;
+                    if (lefts[top] == NONE) {
+                        lefts[top] = done;
+                        at = pending.get(top).getRight();
+                        break;
+                    }
+                    var op = pending.remove(top);
+                    done = add(MATHOP, op.getOp().ordinal(), lefts[top], done, TypeVisitor.type(op).ordinal());
+                    if (pending.isEmpty())
+                        return done;
+                }
+            }
+        }
+
+        private int list(int kind, List<? extends Node> items) throws IOException {
+            var fields = new int[items.size() + 3];
+            fields[0] = kind;
+            fields[1] = NONE;
+            fields[2] = items.size();
+            for (int i = 0; i < items.size(); i++)
+                fields[i + 3] = expression(items.get(i));
+            return add(fields);
+        }
+
+        /**
+         * @return the name's symbol id, interning it if it came from a parse without a symbol table
+         */
+        private int symbol(String name, int symbol) {
+            return symbol >= 0 ? symbol : symbols.intern(name);
+        }
+
+        /**
+         * @return index of a literal among the literals, whose string ids come after all the symbols
+         */
+        private int literal(String text) {
+            Integer id = literalIds.get(text);
+            if (id == null) {
+                id = literals.size();
+                literals.add(text);
+                literalIds.put(text, id);
+            }
+            return id;
+        }
+
+        private int add(int... fields) {
+            return append(fields);
+        }
+
+        private int append(int[] fields) {
+            if (size + fields.length > code.length)
+                code = Arrays.copyOf(code, Math.max(code.length * 2, size + fields.length));
+            System.arraycopy(fields, 0, code, size, fields.length);
+            size += fields.length;
+            return size - fields.length;
+        }
+    }
+}
@@ -6,6 +6,7 @@ public class ForNode extends StatementNode {
     private final int start;
     private final int end;
     private final int increment;
+    private NextNode matching;
 
     public ForNode(VariableNode variable, int start, int end, int increment) {
         this.variable = variable;
@@ -32,6 +33,18 @@ public class ForNode extends StatementNode {
         return increment;
     }
 
+    /**
+     * @return the first NEXT after the loop, where it is left when it doesn't run at all,
+     * set when the program is prepared
+     */
+    public NextNode getMatching() {
+        return matching;
+    }
+
+    public void setMatching(NextNode matching) {
+        this.matching = matching;
+    }
+
     public String toString() {
         return "FOR " + variable + " = " + start + " TO " + end + " STEP " + increment;
     }
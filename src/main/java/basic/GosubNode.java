@@ -2,15 +2,41 @@ package basic;
 
 public class GosubNode extends StatementNode {
     private final String identifier;
+    private final int symbol;
+    private LabeledStatementNode jump;
 
     public GosubNode(String identifier) {
+        this(identifier, -1);
+    }
+
+    /**
+     * @param identifier target label name
+     * @param symbol id of the name in the program's SymbolTable, -1 if not known
+     */
+    public GosubNode(String identifier, int symbol) {
         this.identifier = identifier;
+        this.symbol = symbol;
+    }
+
+    public int getSymbol() {
+        return symbol;
     }
 
     public String getValue() {
         return identifier;
     }
 
+    /**
+     * @return the statement with the target label, set when the program is prepared
+     */
+    public LabeledStatementNode getJump() {
+        return jump;
+    }
+
+    public void setJump(LabeledStatementNode jump) {
+        this.jump = jump;
+    }
+
     public String toString() {
         return "GOSUB " + identifier;
     }
@@ -4,10 +4,26 @@ public class IfNode extends StatementNode {
     
     private final BooleanNode condition;
     private final String target;
+    private final int symbol;
+    private LabeledStatementNode jump;
 
     public IfNode(BooleanNode condition, String target) {
+        this(condition, target, -1);
+    }
+
+    /**
+     * @param condition the condition
+     * @param target target label name
+     * @param symbol id of the target in the program's SymbolTable, -1 if not known
+     */
+    public IfNode(BooleanNode condition, String target, int symbol) {
         this.condition = condition;
         this.target = target;
+        this.symbol = symbol;
+    }
+
+    public int getSymbol() {
+        return symbol;
     }
 
     public BooleanNode getCondition() {
@@ -17,6 +33,17 @@ public class IfNode extends StatementNode {
     public String getTarget() {
         return target;
     }
+
+    /**
+     * @return the statement with the target label, set when the program is prepared
+     */
+    public LabeledStatementNode getJump() {
+        return jump;
+    }
+
+    public void setJump(LabeledStatementNode jump) {
+        this.jump = jump;
+    }
     public String toString() {
         return "IF " + condition + " THEN " + target;
     }
@@ -0,0 +1,128 @@
+package basic;
+
+import basic.Token.TokenType;
+
+/**
+ * Re-lexes a source after an edit without lexing all of it again, for editors
+ * that re-tokenize on every keystroke. Lexing restarts at the line the edit is on
+ * and stops as soon as it reaches a line start that the old token stream also had,
+ * since everything after that is the same text lexed from the same state
+ */
+public class IncrementalLexer {
+
+    /**
+     * The outcome of re-lexing an edit. Tokens [first, first + removed) of the old
+     * stream were replaced by tokens [first, first + added) of the new one, every
+     * other token is the same apart from having its line and offset moved
+     */
+    public static class Result {
+        private final TokenBuffer tokens;
+        private final int first;
+        private final int removed;
+        private final int added;
+
+        public Result(TokenBuffer tokens, int first, int removed, int added) {
+            this.tokens = tokens;
+            this.first = first;
+            this.removed = removed;
+            this.added = added;
+        }
+
+        public TokenBuffer getTokens() {
+            return tokens;
+        }
+
+        public int getFirst() {
+            return first;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+    }
+
+    /** Lexes text that is already in memory, giving a stream that relex can be used on
+     * @param text the source text
+     * @return buffer of every token in text
+     * @throws Exception if lexer encounters an invalid character
+     */
+    public static TokenBuffer lex(String text) throws Exception {
+        return new Lexer(CodeHandler.ofText(text), 1).lexBuffer();
+    }
+
+    /** Re-lexes the lines touched by an edit
+     * @param previous token stream of the source before the edit, read into memory
+     * @param offset source offset the edit starts at
+     * @param removed number of chars removed from offset
+     * @param inserted text inserted at offset
+     * @return the token stream of the edited source and the range of it that changed
+     * @throws Exception if lexer encounters an invalid character in the edited lines,
+     * previous is left as it was
+     */
+    public static Result relex(TokenBuffer previous, int offset, int removed, String inserted) throws Exception {
+        CodeHandler source = previous.getSource().edit(offset, removed, inserted);
+        int delta = inserted.length() - removed;
+        int editEnd = offset + inserted.length(); // end of the edit in the new source
+
+        // restart after the last newline before the edit, a line start outside any literal
+        int first = firstAtOrAfter(previous, offset);
+        while (first > 0 && !(isNewline(previous, first - 1) && previous.getOffset(first - 1) < offset))
+            first--;
+        int start = first == 0 ? 0 : previous.getOffset(first - 1) + 1;
+        int line = first == 0 ? 1 : previous.getLine(first - 1) + 1;
+
+        var lexer = new Lexer(new CodeHandler(source, start), line);
+        TokenBuffer lexed = lexer.getTokens();
+        int old = first; // old token being compared against
+        int synced = -1; // old newline the new stream met up with
+        while (synced < 0 && lexer.lexLine()) {
+            int last = lexed.size() - 1;
+            if (last < 0 || !isNewline(lexed, last) || lexed.getOffset(last) < editEnd)
+                continue;
+            int oldOffset = lexed.getOffset(last) - delta;
+            while (old < previous.size() && previous.getOffset(old) < oldOffset)
+                old++;
+            if (old < previous.size() && previous.getOffset(old) == oldOffset && isNewline(previous, old))
+                synced = old;
+        }
+
+        var tokens = new TokenBuffer(source, previous.getSymbols()); // keeps symbol ids the same across edits
+        tokens.append(previous, 0, first, 0, 0);
+        tokens.append(lexed, 0);
+        int end = previous.size();
+        if (synced >= 0) {
+            end = synced + 1;
+            int lineBase = lexed.getLine(lexed.size() - 1) - previous.getLine(synced);
+            tokens.append(previous, end, previous.size(), lineBase, delta);
+        }
+        tokens.trim();
+        return new Result(tokens, first, end - first, lexed.size());
+    }
+
+    /** Binary search over the token offsets, which only ever go up
+     * @return index of the first token starting at or after offset
+     */
+    private static int firstAtOrAfter(TokenBuffer tokens, int offset) {
+        int lo = 0;
+        int hi = tokens.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokens.getOffset(mid) < offset)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return true if token i is the ENDOFLINE of an actual newline, rather than the end of the file
+     */
+    private static boolean isNewline(TokenBuffer tokens, int i) {
+        return tokens.getType(i) == TokenType.ENDOFLINE && tokens.getLength(i) == 1;
+    }
+}
@@ -0,0 +1,402 @@
+package basic;
+
+import basic.Token.TokenType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Keeps a program parsed and prepared across edits, for REPL and editor sessions.
+ * An edit is re-lexed with the IncrementalLexer, only the statements on the lines
+ * it touched are parsed again, and those are spliced into the statement list with
+ * their next links and labels patched in place. Every other StatementNode is kept.
+ * Only the jumps an edit can change are resolved again: the ones in the edited lines and the
+ * ones going to a label the edit added or removed. A FOR and NEXT are paired again outside the
+ * edited lines only when the edit changes how loops nest across its edges.
+ * Lexing, parsing and resolving take time in proportion to the lines an edit touched, but the
+ * tokens, the statement list and each statement's start are kept in arrays, and the ones after
+ * the edit are still copied along and shifted. So an edit is not O(edit) on a big program, only
+ * a handful of array copies rather than a whole parse
+ */
+public class IncrementalParser {
+    private TokenBuffer tokens;
+    private final StatementsNode ast;
+    private int[] starts; // token index each statement starts at
+    private final LabelVisitor labels;
+    private DataVisitor data;
+    private final HashMap<String,List<StatementNode>> jumps; // each label to the IFs, GOSUBs and WHILEs going to it
+    private final IdentityHashMap<NextNode,ForNode> fors; // each NEXT to the FOR it closes
+
+    /** Parses and prepares a whole source
+     * @param text the source text
+     * @throws Exception if the source doesn't lex or parse, or repeats a label
+     */
+    public IncrementalParser(String text) throws Exception {
+        tokens = IncrementalLexer.lex(text);
+        var program = new Program(new Parser(tokens).parse());
+        ast = program.getAST();
+        labels = program.getLabels();
+        data = program.getData();
+        starts = starts(tokens, 0, tokens.size(), ast.getAST().size());
+        jumps = new HashMap<>();
+        fors = new IdentityHashMap<>();
+        index(ast.getAST());
+    }
+
+    /** Applies an edit to the source, parsing only the lines it touched
+     * @param offset source offset the edit starts at
+     * @param removed number of chars removed from offset
+     * @param inserted text inserted at offset
+     * @return the edited program, prepared
+     * @throws Exception if the edited lines don't lex or parse, repeat a label, or leave
+     * a jump without its target. The program is left as it was before the edit
+     */
+    public Program edit(int offset, int removed, String inserted) throws Exception {
+        var relexed = IncrementalLexer.relex(tokens, offset, removed, inserted);
+        var edited = relexed.getTokens();
+        int first = relexed.getFirst(); // always just after a newline
+        int shift = relexed.getAdded() - relexed.getRemoved();
+        var statements = ast.getAST();
+
+        // statements from a up to b start in the changed tokens, the ones around them are kept.
+        // A label on a line of its own belongs to the statement after it, so that comes along too
+        int a = statementAt(first);
+        if (a > 0 && waiting(tokens, starts[a - 1], first))
+            a--;
+        int from = a < statements.size() ? Math.min(first, starts[a]) : first;
+        if (a == 0) // parse() reads any empty lines before the first statement along with it
+            from = 0;
+        while (from > 0 && from < edited.size() && edited.getType(from) == TokenType.ENDOFLINE)
+            from++; // and eats the ones after a statement with its separators
+        int b = statementAt(first + relexed.getRemoved());
+        int end = b < statements.size() ? starts[b] + shift : edited.size();
+        // a label left waiting takes the next statement, and so does a program that now starts with empty
+        // lines, since parse() won't take a label after those
+        while (b < statements.size() && (endsWithLabel(edited, from, end) || from == 0 && blank(edited, from, end)))
+            end = ++b < statements.size() ? starts[b] + shift : edited.size();
+        List<StatementNode> parsed = List.of(); // lines that were only emptied parse to nothing
+        if (!blank(edited, from, end) || from == 0 && b == statements.size())
+            parsed = new Parser(edited, from, end).parse().getAST();
+        var gone = statements.subList(a, b);
+
+        var dropped = new IdentityHashMap<LabeledStatementNode,Boolean>();
+        for (StatementNode s : gone)
+            if (s instanceof LabeledStatementNode)
+                dropped.put((LabeledStatementNode) s, true);
+        var names = new HashSet<String>();
+        for (StatementNode s : parsed) {
+            if (!(s instanceof LabeledStatementNode))
+                continue;
+            var name = ((LabeledStatementNode) s).getLabel();
+            var existing = labels.get(name);
+            if (!names.add(name) || existing != null && !dropped.containsKey(existing)) {
+                System.err.println("Repeated label: " + name);
+                throw new Exception();
+            }
+        }
+
+        boolean dataChanged = hasData(gone) || hasData(parsed);
+        var replaced = splice(a, b - a, parsed);
+        try {
+            resolve(parsed, replaced);
+        } catch (Exception x) { // nothing was resolved yet, so the old statements are all there is to put back
+            splice(a, parsed.size(), replaced);
+            throw x;
+        }
+
+        var added = starts(edited, from, end, parsed.size());
+        if (added.length != b - a) { // statements came or went, so the ones after them move along
+            var moved = new int[statements.size()];
+            System.arraycopy(starts, 0, moved, 0, a);
+            System.arraycopy(starts, b, moved, a + added.length, starts.length - b);
+            starts = moved;
+        }
+        System.arraycopy(added, 0, starts, a, added.length);
+        for (int i = a + added.length; i < starts.length; i++)
+            starts[i] += shift;
+        tokens = edited;
+
+        if (dataChanged) { // the pool is in program order, so it's simplest to collect it again
+            data = new DataVisitor();
+            for (StatementNode s : statements)
+                s.accept(data);
+        }
+        return getProgram();
+    }
+
+    /** Replaces statements, with their labels and the next links around them
+     * @param at index of the first statement to replace
+     * @param count number of statements to replace
+     * @param in statements to put there, whose labels aren't in the program yet
+     * @return the statements that were replaced
+     */
+    private List<StatementNode> splice(int at, int count, List<StatementNode> in) throws Exception {
+        var statements = ast.getAST();
+        var replaced = statements.subList(at, at + count);
+        var out = new ArrayList<StatementNode>(replaced);
+        for (StatementNode s : out)
+            if (s instanceof LabeledStatementNode)
+                labels.remove((LabeledStatementNode) s);
+        for (StatementNode s : in)
+            s.accept(labels);
+
+        var order = new OrderVisitor(at + count < statements.size() ? statements.get(at + count) : null);
+        for (int i = in.size() - 1; i >= 0; i--)
+            in.get(i).accept(order);
+        if (at > 0)
+            statements.get(at - 1).accept(order);
+        replaced.clear();
+        statements.addAll(at, in);
+        return out;
+    }
+
+    /** Resolves the jumps and loops a splice could have changed. Everything is worked out before
+     * anything is set, so if this fails the program is still resolved the way it was before the splice
+     * @param in statements spliced in
+     * @param out statements spliced out
+     * @throws Exception if a jump lost its label, a WHILE's end label comes before it now,
+     * or FORs and NEXTs don't pair up
+     */
+    private void resolve(List<StatementNode> in, List<StatementNode> out) throws Exception {
+        var types = new TypeVisitor(); // the rest of the program is typed already
+        for (StatementNode s : in)
+            s.accept(types);
+
+        var names = new HashSet<String>(); // labels whose statement changed
+        var gone = new IdentityHashMap<StatementNode,Boolean>();
+        for (StatementNode s : out) {
+            if (s instanceof LabeledStatementNode)
+                names.add(((LabeledStatementNode) s).getLabel());
+            gone.put(inner(s), true);
+        }
+        var targets = new IdentityHashMap<StatementNode,LabeledStatementNode>();
+        for (StatementNode s : in) {
+            if (s instanceof LabeledStatementNode)
+                names.add(((LabeledStatementNode) s).getLabel());
+            if (label(inner(s)) != null)
+                targets.put(inner(s), target(inner(s)));
+        }
+        for (String name : names)
+            for (StatementNode jump : jumps.getOrDefault(name, List.of()))
+                if (!gone.containsKey(jump))
+                    targets.put(jump, target(jump));
+
+        var pairs = new IdentityHashMap<ForNode,NextNode>();
+        var open = new ArrayList<ForNode>();
+        var closing = new ArrayList<NextNode>();
+        Program.pair(in, pairs, open, closing);
+        var wasOpen = new ArrayList<ForNode>();
+        var wasClosing = new ArrayList<NextNode>();
+        Program.pair(out, new IdentityHashMap<>(), wasOpen, wasClosing);
+        boolean nested = sameVariables(open, wasOpen) && sameVariables(closing, wasClosing);
+        if (nested) { // the edit fits into the loops around it the way the old lines did
+            for (int i = 0; i < closing.size(); i++)
+                pairs.put(fors.get(wasClosing.get(i)), closing.get(i));
+            for (int i = 0; i < open.size(); i++)
+                pairs.put(open.get(i), wasOpen.get(i).getMatching());
+        }
+        else { // loops nest differently across the edges of the edit, so pair up the whole program again
+            pairs.clear();
+            open.clear();
+            closing.clear();
+            Program.pair(ast.getAST(), pairs, open, closing);
+            if (!closing.isEmpty())
+                error("No FOR for " + closing.get(0));
+            if (!open.isEmpty())
+                error("No NEXT for " + open.get(open.size() - 1));
+        }
+
+        for (var t : targets.entrySet()) {
+            var jump = t.getKey();
+            if (jump instanceof IfNode)
+                ((IfNode) jump).setJump(t.getValue());
+            else if (jump instanceof GosubNode)
+                ((GosubNode) jump).setJump(t.getValue());
+            else
+                ((WhileNode) jump).setEnd(t.getValue());
+        }
+        for (var p : pairs.entrySet())
+            p.getKey().setMatching(p.getValue());
+        if (nested) {
+            for (StatementNode s : out)
+                if (inner(s) instanceof NextNode)
+                    fors.remove(inner(s));
+            for (var p : pairs.entrySet())
+                fors.put(p.getValue(), p.getKey());
+        }
+        else {
+            fors.clear();
+            for (var p : pairs.entrySet())
+                fors.put(p.getValue(), p.getKey());
+        }
+        for (StatementNode s : out) {
+            var label = label(inner(s));
+            if (label != null)
+                jumps.get(label).remove(inner(s));
+        }
+        index(in);
+    }
+
+    /** Adds the jumps among some statements to the label index, and their NEXTs to the FOR index
+     * @param statements statements, already resolved
+     */
+    private void index(List<StatementNode> statements) {
+        for (StatementNode s : statements) {
+            s = inner(s);
+            var label = label(s);
+            if (label != null)
+                jumps.computeIfAbsent(label, l -> new ArrayList<>()).add(s);
+            if (s instanceof ForNode)
+                fors.put(((ForNode) s).getMatching(), (ForNode) s);
+        }
+    }
+
+    /**
+     * @param jump an IF, GOSUB or WHILE
+     * @return the statement with its label
+     * @throws Exception if the label is missing, or it's a WHILE whose end label doesn't come after it
+     */
+    private LabeledStatementNode target(StatementNode jump) throws Exception {
+        var target = labels.get(label(jump));
+        if (target == null)
+            error("Missing label " + label(jump) + " for " + jump);
+        if (jump instanceof WhileNode) { // the end of a loop is never far, so look for it along the next links
+            var s = jump.next();
+            while (s != null && s != target)
+                s = s.next();
+            if (s == null)
+                error("End label for " + jump + " comes before it");
+        }
+        return target;
+    }
+
+    /**
+     * @return the label an IF, GOSUB or WHILE goes to, or null for any other statement
+     */
+    private static String label(StatementNode s) {
+        if (s instanceof IfNode)
+            return ((IfNode) s).getTarget();
+        if (s instanceof GosubNode)
+            return ((GosubNode) s).getValue();
+        if (s instanceof WhileNode)
+            return ((WhileNode) s).getValue();
+        return null;
+    }
+
+    private static StatementNode inner(StatementNode s) {
+        if (s instanceof LabeledStatementNode)
+            return ((LabeledStatementNode) s).getStatement();
+        return s;
+    }
+
+    /**
+     * @return true if both lists have FORs or NEXTs of the same variables in the same order
+     */
+    private static boolean sameVariables(List<? extends StatementNode> a, List<? extends StatementNode> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++)
+            if (!variable(a.get(i)).equals(variable(b.get(i))))
+                return false;
+        return true;
+    }
+
+    private static String variable(StatementNode s) {
+        if (s instanceof ForNode)
+            return ((ForNode) s).getVar().getValue();
+        return ((NextNode) s).getVar().getValue();
+    }
+
+    private static void error(String msg) throws Exception {
+        System.err.println(msg);
+        throw new Exception();
+    }
+
+    /**
+     * @return the program as of the last edit
+     */
+    public Program getProgram() {
+        return new Program(ast, labels, data);
+    }
+
+    /**
+     * @return the tokens of the source as of the last edit
+     */
+    public TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @param token index of a token
+     * @return index of the first statement that starts at or after it
+     */
+    private int statementAt(int token) {
+        int i = Arrays.binarySearch(starts, token);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /** Finds where statements start the same way the parser reads them, at the first
+     * token after each run of ENDOFLINEs unless a label is still waiting for its statement
+     * @param tokens buffer
+     * @param from index of the first token of a line, with no label waiting
+     * @param to index to stop before
+     * @param count number of statements the parser found there
+     * @return index of the first token of each statement
+     */
+    private static int[] starts(TokenBuffer tokens, int from, int to, int count) {
+        var out = new int[count];
+        int n = 0;
+        boolean label = false;
+        for (int i = from; i < to && n < count; i++) {
+            var type = tokens.getType(i);
+            if (type == TokenType.ENDOFLINE)
+                continue;
+            if (!label && (i == from || tokens.getType(i - 1) == TokenType.ENDOFLINE))
+                out[n++] = i;
+            label = type == TokenType.LABEL && (i == from || tokens.getType(i - 1) == TokenType.ENDOFLINE);
+        }
+        return out;
+    }
+
+    /**
+     * @return true if the statement starting at start is a label with only ENDOFLINEs after it before token
+     */
+    private static boolean waiting(TokenBuffer tokens, int start, int token) {
+        if (tokens.getType(start) != TokenType.LABEL)
+            return false;
+        return blank(tokens, start + 1, token);
+    }
+
+    /**
+     * @return true if the last token before end that isn't an ENDOFLINE is a label
+     */
+    private static boolean endsWithLabel(TokenBuffer tokens, int from, int end) {
+        int i = end - 1;
+        while (i >= from && tokens.getType(i) == TokenType.ENDOFLINE)
+            i--;
+        return i >= from && tokens.getType(i) == TokenType.LABEL;
+    }
+
+    /**
+     * @return true if tokens from up to end are all ENDOFLINEs
+     */
+    private static boolean blank(TokenBuffer tokens, int from, int end) {
+        for (int i = from; i < end; i++)
+            if (tokens.getType(i) != TokenType.ENDOFLINE)
+                return false;
+        return true;
+    }
+
+    private static boolean hasData(List<StatementNode> statements) {
+        for (StatementNode s : statements) {
+            if (s instanceof LabeledStatementNode)
+                s = ((LabeledStatementNode) s).getStatement();
+            if (s instanceof DataNode)
+                return true;
+        }
+        return false;
+    }
+}
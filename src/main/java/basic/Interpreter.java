@@ -3,7 +3,10 @@ package basic;
 import basic.BooleanNode.Comparison;
 import basic.FunctionNode.Invocation;
 import basic.MathOpNode.Operation;
-import java.util.HashMap;
+import basic.Node.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.List;
@@ -16,8 +19,10 @@ import java.util.Scanner;
  */
 public class Interpreter {
     private final StatementsNode ast;
-    private DataVisitor data;
+    private List<Node> data; // the DATA pool, which READ goes through from the start on every run
+    private int next; // index of the next item READ takes
     private LabelVisitor labels;
+    private boolean prepared; // order, data, labels and jumps are done, or came with the program
 
     // to indicate where PRINT and INPUT should output
     private boolean test;
@@ -27,27 +32,47 @@ public class Interpreter {
     // would be a queue but we put things into the head for certain control simplifications
     private List<StatementNode> stack;
 
-    private HashMap<String,Integer> intVars;
-    private HashMap<String,Float> floatVars;
-    private HashMap<String,String> stringVars;
+    // variables are kept in slots numbered by their symbol id, so they're never looked up by name.
+    // A slot can hold an int and a float at once, since FOR counts in an int whatever the name
+    private int[] intVars;
+    private boolean[] isInt;
+    private float[] floatVars;
+    private boolean[] isFloat;
+    private String[] stringVars;
+
+    // evalInt() and evalFloat() recurse into at most DEEP operations, and use an explicit stack for any deeper
+    private static final int DEEP = 1000;
+    private int nesting;
 
     protected Interpreter (StatementsNode ast, boolean test)  {
         this.test = test;
         this.ast = ast;
-        this.data = new DataVisitor();
+        this.data = List.of();
         this.labels = new LabelVisitor();
         this.stack = new LinkedList<>();
         this.fullOutList = new LinkedList<>();
 
-        this.intVars = new HashMap<>();
-        this.floatVars = new HashMap<>();
-        this.stringVars = new HashMap<>();
+        frame(ast.getSymbols().size());
     }
 
     protected Interpreter (StatementsNode ast)  {
         this(ast, false);
     }
 
+    /** Interpreter for a program that is already prepared, so interpreting doesn't redo it
+     * @param program the program, as parsed or as loaded from a ProgramCache
+     */
+    protected Interpreter (Program program, boolean test)  {
+        this(program.getAST(), test);
+        this.data = program.getData().getData();
+        this.labels = program.getLabels();
+        this.prepared = true;
+    }
+
+    protected Interpreter (Program program)  {
+        this(program, false);
+    }
+
     protected void putIO(List<String> in) {
         ioList = in;
     }
@@ -61,32 +86,25 @@ public class Interpreter {
     }
 
     /**
-     * Preprocesses data statements
-     * @modifies data, adding in all data statement contents in order
+     * @return the next item of the DATA pool
+     * @throws Exception if READ has taken every item already
      */
-    protected void processData() throws Exception {
-        for (StatementNode s : ast.getAST())
-            s.accept(data);
-    }
-
-    protected Node popData() {
-        return data.pop();
-    }
-
-    protected void processOrder() throws Exception {
-        var visitor = new OrderVisitor();
-        for (int i = ast.getAST().size() - 1; i >= 0; i--)
-            ast.getAST().get(i).accept(visitor);
+    protected Node popData() throws Exception {
+        if (next == data.size())
+            handleError("Out of DATA for READ");
+        return data.get(next++);
     }
 
     /**
-     * Preprocesses data statements
-     * @modifies labels, mapping all label strings to the relevant node
-     * @throws exception if a label is repeated
+     * Links the statements, collects the DATA pool, registers the labels and resolves
+     * the jumps. Done the first time the program runs, unless it came prepared
+     * @throws Exception if a label is repeated or a jump can't be resolved
      */
-    protected void processLabels() throws Exception {
-        for (StatementNode s : ast.getAST())
-            s.accept(labels);
+    protected void prepare() throws Exception {
+        var program = new Program(ast);
+        data = program.getData().getData();
+        labels = program.getLabels();
+        prepared = true;
     }
 
     protected LabeledStatementNode getLabel(String s) {
@@ -94,11 +112,44 @@ public class Interpreter {
     }
 
     protected String getVar(String s) {
-        if (floatVars.containsKey(s))
-            return floatVars.get(s).toString();
-        if (intVars.containsKey(s))
-            return intVars.get(s).toString();
-        return stringVars.get(s);
+        int slot = ast.getSymbols().find(s);
+        if (slot < 0 || slot >= intVars.length)
+            return null;
+        if (isFloat[slot])
+            return Float.toString(floatVars[slot]);
+        if (isInt[slot])
+            return Integer.toString(intVars[slot]);
+        return stringVars[slot];
+    }
+
+    /**
+     * @param v a variable
+     * @return the slot of its values, which is its symbol id. Nodes built without a SymbolTable
+     * have their name interned the first time they're used
+     */
+    private int slot(VariableNode v) {
+        int slot = v.getSymbol();
+        if (slot < 0) {
+            slot = ast.getSymbols().intern(v.getValue());
+            v.setSymbol(slot);
+        }
+        if (slot >= intVars.length)
+            frame(ast.getSymbols().size());
+        return slot;
+    }
+
+    /** Makes room for variables in every slot up to size, keeping the values already set
+     * @param size number of slots
+     */
+    private void frame(int size) {
+        size = Math.max(size, 16);
+        if (intVars != null && size <= intVars.length)
+            return;
+        intVars = intVars == null ? new int[size] : Arrays.copyOf(intVars, size);
+        isInt = isInt == null ? new boolean[size] : Arrays.copyOf(isInt, size);
+        floatVars = floatVars == null ? new float[size] : Arrays.copyOf(floatVars, size);
+        isFloat = isFloat == null ? new boolean[size] : Arrays.copyOf(isFloat, size);
+        stringVars = stringVars == null ? new String[size] : Arrays.copyOf(stringVars, size);
     }
 
     /* START OF BUILT-IN FUNCTIONS */
@@ -140,140 +191,218 @@ public class Interpreter {
         return valf(((StringNode)data).getValue());
     }
 
-    protected static Optional<Integer> intFunction(FunctionNode func) throws Exception {
+    protected static int intFunction(FunctionNode func) throws Exception {
         var op = func.getValue();
-        if (op == Invocation.RANDOM) return Optional.of(random());
-        if (op == Invocation.VAL) return Optional.of(val(func.getData().get(0)));
-        return Optional.empty();
+        if (op == Invocation.RANDOM) return random();
+        if (op == Invocation.VAL) return val(func.getData().get(0));
+        handleError("Not an int function: " + func);
+        return 0; // this should never happen
     }
-    protected static Optional<Float> floatFunction(FunctionNode func) throws Exception {
+    protected static float floatFunction(FunctionNode func) throws Exception {
         var op = func.getValue();
-        if (op == Invocation.VALF) return Optional.of(valf(func.getData().get(0)));
-        return Optional.empty();
+        if (op == Invocation.VALF) return valf(func.getData().get(0));
+        handleError("Not a float function: " + func);
+        return 0; // this should never happen
     }
     /* END OF BUILT-IN FUNCTION NODE HANDLING */
 
     /**
-     * Processes RHS of an int expression
+     * Processes RHS of an int expression, boxed. The interpreter itself uses evalInt()
      * @arg Input node of expression (MathOpNode, VariableNode or just an IntegerNode)
-     * @return evaluated value of the expression or empty if not an int expression (may be float)
-     * @throws NullPointerException if an invalid variable is accessed
+     * @return evaluated value of the expression or empty if its type isn't INT
+     * @throws Exception if a variable with no value is accessed
      */
     protected Optional<Integer> evaluate(Node in) throws Exception {
-        Integer out = null;
+        if (TypeVisitor.type(in) != Type.INT)
+            return Optional.empty();
+        return Optional.of(evalInt(in));
+    }
+
+    /**
+     * Processes RHS of a float expression, boxed. The interpreter itself uses evalFloat()
+     * @arg Input node of expression (MathOpNode, VariableNode or just a FloatNode or IntegerNode)
+     * @return evaluated value of the expression or empty if its type is STRING
+     * @throws Exception if a function call fails or a variable with no value is accessed
+     */
+    protected Optional<Float> evaluatef(Node in) throws Exception {
+        if (TypeVisitor.type(in) == Type.STRING)
+            return Optional.empty();
+        return Optional.of(evalFloat(in));
+    }
+
+    /**
+     * Evaluates an INT expression without boxing anything along the way
+     * @param in expression
+     * @return its value
+     * @throws Exception if it isn't an INT expression or a variable with no value is accessed
+     */
+    protected int evalInt(Node in) throws Exception {
+        if (TypeVisitor.type(in) != Type.INT)
+            handleError("Not an int expression: " + in);
         if (in instanceof IntegerNode)
-            out = ((IntegerNode) in).getValue();
+            return ((IntegerNode) in).getValue();
         if (in instanceof VariableNode) {
-            // consider a lookupVarable() method
-            var name = ((VariableNode) in).getValue();
-            // do this check because there are cases where we try both evals
-            if (floatVars.containsKey(name))
-                return Optional.empty();
-            out = intVars.get(name);
+            int slot = slot((VariableNode) in);
+            if (!isInt[slot])
+                handleError("Variable " + in + " has no value");
+            return intVars[slot];
         }
         if (in instanceof FunctionNode)
             return intFunction((FunctionNode) in);
-        if (in instanceof MathOpNode) {
-            var op = (MathOpNode) in;
-            Optional<Integer> oleft = evaluate(op.getLeft());
-            Optional<Integer> oright = evaluate(op.getRight());
-            if (oleft.isEmpty() || oright.isEmpty())
-                return Optional.empty();
-            int left = oleft.get();
-            int right = oright.get();
-            switch (op.getOp()) {
-                case Operation.ADD:
-                    out = left + right;
-                    break;
-                case Operation.SUBTRACT:
-                    out = left - right;
-                    break;
-                case Operation.DIVIDE:
-                    out = left / right;
-                    break;
-                case Operation.MULTIPLY:
-                    out = left * right;
-                    break;
+        var op = (MathOpNode) in; // an INT that's none of the above
+        if (nesting >= DEEP)
+            return deepInt(op);
+        nesting++;
+        int left = evalInt(op.getLeft());
+        int right = evalInt(op.getRight());
+        nesting--;
+        return operate(op, left, right);
+    }
+
+    /** Evaluates an INT operation too deeply nested to recurse into, operands first from an explicit stack
+     * @param in operation
+     * @return its value
+     */
+    private int deepInt(MathOpNode in) throws Exception {
+        var order = postOrder(in);
+        var values = new int[order.size()];
+        int size = 0;
+        for (Node n : order) {
+            if (n instanceof MathOpNode) {
+                size--;
+                values[size - 1] = operate((MathOpNode) n, values[size - 1], values[size]);
+            }
+            else {
+                values[size++] = evalInt(n);
             }
         }
-        if (out == null)
-            return Optional.empty();
-        return Optional.of(out);
+        return values[0];
+    }
+
+    private static int operate(MathOpNode op, int left, int right) throws Exception {
+        switch (op.getOp()) {
+            case Operation.ADD:
+                return left + right;
+            case Operation.SUBTRACT:
+                return left - right;
+            case Operation.DIVIDE:
+                return left / right;
+            case Operation.MULTIPLY:
+                return left * right;
+        }
+        handleError("Bad operation " + op);
+        return 0; // this should never happen
     }
 
     /**
-     * Processes RHS of a float expression
-     * @arg Input node of expression (MathOpNode, VariableNode or just a FloatNode or IntegerNode)
-     * @return evaluated value of the expression or empty if not a float expression
-     * @throws NullPointerException if an invalid variable is accessed
-     * @throws Exception if a function call fails
+     * Evaluates an INT or FLOAT expression in floats throughout, ints included
+     * @param in expression
+     * @return its value
+     * @throws Exception if it isn't a number or a variable with no value is accessed
      */
-    protected Optional<Float> evaluatef(Node in) throws Exception {
-        Float out = null;
+    protected float evalFloat(Node in) throws Exception {
+        var type = TypeVisitor.type(in);
+        if (type == Type.STRING)
+            handleError("Not a float expression: " + in);
         if (in instanceof FloatNode)
-            out = ((FloatNode) in).getValue();
+            return ((FloatNode) in).getValue();
         if (in instanceof IntegerNode)
-            out = (float) ((IntegerNode) in).getValue();
+            return ((IntegerNode) in).getValue();
         if (in instanceof VariableNode) {
-            // consider a lookupVarable() method
-            var name = ((VariableNode) in).getValue();
-            if (floatVars.containsKey(name))
-                out = floatVars.get(name);
-            else
-                out = (float) intVars.get(name);
+            int slot = slot((VariableNode) in);
+            if (isFloat[slot])
+                return floatVars[slot];
+            if (!isInt[slot])
+                handleError("Variable " + in + " has no value");
+            return intVars[slot];
         }
         if (in instanceof FunctionNode) {
-            var intval = intFunction((FunctionNode) in);
-            if (!intval.isEmpty())
-                return Optional.of((float)intval.get());
+            if (type == Type.INT)
+                return intFunction((FunctionNode) in);
             return floatFunction((FunctionNode) in);
         }
-        if (in instanceof MathOpNode) {
-            var op = (MathOpNode) in;
-            Optional<Float> oleft = evaluatef(op.getLeft());
-            Optional<Float> oright = evaluatef(op.getRight());
-            if (oleft.isEmpty() || oright.isEmpty())
-                return Optional.empty();
-            float left = oleft.get();
-            float right = oright.get();
-            switch (op.getOp()) {
-                case Operation.ADD:
-                    out = left + right;
-                    break;
-                case Operation.SUBTRACT:
-                    out = left - right;
-                    break;
-                case Operation.DIVIDE:
-                    out = left / right;
-                    break;
-                case Operation.MULTIPLY:
-                    out = left * right;
-                    break;
+        var op = (MathOpNode) in;
+        if (nesting >= DEEP)
+            return deepFloat(op);
+        nesting++;
+        float left = evalFloat(op.getLeft());
+        float right = evalFloat(op.getRight());
+        nesting--;
+        return operate(op, left, right);
+    }
+
+    /** Evaluates an INT or FLOAT operation too deeply nested to recurse into, in floats like evalFloat()
+     * @param in operation
+     * @return its value
+     */
+    private float deepFloat(MathOpNode in) throws Exception {
+        var order = postOrder(in);
+        var values = new float[order.size()];
+        int size = 0;
+        for (Node n : order) {
+            if (n instanceof MathOpNode) {
+                size--;
+                values[size - 1] = operate((MathOpNode) n, values[size - 1], values[size]);
+            }
+            else {
+                values[size++] = evalFloat(n);
             }
         }
-        if (out == null)
-            return Optional.empty();
-        return Optional.of(out);
+        return values[0];
+    }
+
+    private static float operate(MathOpNode op, float left, float right) throws Exception {
+        switch (op.getOp()) {
+            case Operation.ADD:
+                return left + right;
+            case Operation.SUBTRACT:
+                return left - right;
+            case Operation.DIVIDE:
+                return left / right;
+            case Operation.MULTIPLY:
+                return left * right;
+        }
+        handleError("Bad operation " + op);
+        return 0; // this should never happen
     }
 
-    protected boolean evaluateb(BooleanNode n) throws Exception {
-        var left = n.getLeft();
-        double leftnum;
-        var leftval = evaluate(left);
-        if (!leftval.isEmpty())
-            leftnum = leftval.get();
-        else {
-            leftnum = evaluatef(left).get();
+    /**
+     * @param in operation
+     * @return its operations and operands, each operation after both of its sides and left sides first
+     */
+    private static List<Node> postOrder(MathOpNode in) {
+        var out = new ArrayList<Node>();
+        var pending = new ArrayList<Node>();
+        pending.add(in);
+        while (!pending.isEmpty()) {
+            var n = pending.remove(pending.size() - 1);
+            out.add(n);
+            if (n instanceof MathOpNode) {
+                pending.add(((MathOpNode) n).getLeft());
+                pending.add(((MathOpNode) n).getRight());
+            }
         }
+        Collections.reverse(out);
+        return out;
+    }
 
-        var right = n.getRight();
-        double rightnum;
-        var rightval = evaluate(right);
-        if (!rightval.isEmpty())
-            rightnum = rightval.get();
-        else {
-            rightnum = evaluatef(right).get();
-        }
+    /**
+     * @param in a string literal or string variable
+     * @return its value, null for a variable that hasn't been set
+     * @throws Exception if it's any other expression
+     */
+    protected String evalString(Node in) throws Exception {
+        if (in instanceof StringNode)
+            return ((StringNode) in).getValue();
+        if (in instanceof VariableNode && TypeVisitor.type(in) == Type.STRING)
+            return stringVars[slot((VariableNode) in)];
+        handleError("Not a string expression: " + in);
+        return null; // this should never happen
+    }
+
+    protected boolean evaluateb(BooleanNode n) throws Exception {
+        double leftnum = number(n.getLeft());
+        double rightnum = number(n.getRight());
 
         switch (n.getOp()) {
             case Comparison.EQUALS:
@@ -293,14 +422,24 @@ public class Interpreter {
         return false; // this should never happen
     }
 
+    /** Evaluates a number with the evaluator for its type
+     * @throws Exception if it isn't a number
+     */
+    private double number(Node in) throws Exception {
+        if (TypeVisitor.type(in) == Type.INT)
+            return evalInt(in);
+        return evalFloat(in);
+    }
+
     public void interpret() throws Exception {
         interpret(ast.getAST().get(0));
     }
 
     protected void interpret(StatementNode n) throws Exception {
-        processOrder();
-        processData();
-        processLabels();
+        if (!prepared)
+            prepare();
+        next = 0;
+        nesting = 0;
 
         while (n != null) {
             //System.out.println("Running: " + n);
@@ -348,14 +487,8 @@ public class Interpreter {
     }
 
     protected StatementNode interpret(WhileNode n) throws Exception {
-        if (!evaluateb(n.getCondition())) {
-            for (StatementNode travel = n.next(); travel != null ; travel = travel.next()) {
-                if (travel instanceof LabeledStatementNode &&
-                        ((LabeledStatementNode)travel).getLabel().equals(n.getValue()))
-                    return travel;
-            }
-            handleError("No ending label for " + n);
-        }
+        if (!evaluateb(n.getCondition()))
+            return n.getEnd();
         stack.add(0, n);
         return n.next();
     }
@@ -363,7 +496,7 @@ public class Interpreter {
     protected StatementNode interpret(LabeledStatementNode n) throws Exception {
         if (!stack.isEmpty() && stack.get(0) instanceof WhileNode) {
             WhileNode back = (WhileNode)(stack.get(0));
-            if (back.getValue().equals(n.getLabel()) && evaluateb(back.getCondition()))
+            if (back.getEnd() == n && evaluateb(back.getCondition()))
                 return back;
         }
         return n.getStatement();
@@ -371,42 +504,34 @@ public class Interpreter {
 
     protected StatementNode interpret(IfNode n) throws Exception {
         if (evaluateb(n.getCondition()))
-            return labels.get(n.getTarget());
+            return n.getJump();
         return n.next();
     }
 
     protected StatementNode interpret(GosubNode n) throws Exception {
         stack.add(0, n.next());
-        return labels.get(n.getValue());
+        return n.getJump();
     }
 
     protected StatementNode interpret(ForNode n) throws Exception {
-        var varName = n.getVar().getValue();
-        intVars.put(varName, n.getStart());
-        if (n.getStart() > n.getEnd()) {
-            StatementNode travel;
-            for (travel = n.next(); !(travel instanceof NextNode); travel = travel.next())
-                if (travel instanceof LabeledStatementNode)
-                    travel = ((LabeledStatementNode)travel).getStatement();
-            if (!(travel instanceof NextNode))
-                handleError("No NEXT for statement " + n);
-            return travel.next();
-        }
+        int slot = slot(n.getVar());
+        intVars[slot] = n.getStart();
+        isInt[slot] = true;
+        if (n.getStart() > n.getEnd())
+            return n.getMatching().next();
 
         stack.add(0, n);
         return n.next();
     }
 
     protected StatementNode interpret(NextNode n) throws Exception {
-        // we can assume that the relevant for node is at the top of the stack
-        // effectively, we assume nested loops can't cut each other off
+        // FORs and NEXTs were paired up by variable when the program was prepared,
+        // so the relevant for node is at the top of the stack
         ForNode back = (ForNode)(stack.get(0));
-        var varName = n.getVar().getValue();
-        if (!varName.equals(back.getVar().getValue()))
-            handleError("Mismatched variable for " + back + " and " + n);
-        int track = intVars.get(varName);
-        track += back.getInc();
-        intVars.put(varName, track);
+        int slot = slot(n.getVar());
+        if (!isInt[slot])
+            handleError("NEXT of unset variable in " + n);
+        int track = intVars[slot] += back.getInc();
         if (track > back.getEnd()) {
             return n.next();
         }
@@ -415,30 +540,18 @@ public class Interpreter {
 
     /** Generates print list for a PrintNode
      *  Called by interpret(), used explicitly for testing
-     *  @throws NoSuchElementException if any element of the list is invalid
+     *  @throws Exception if any element of the list is invalid
      */
     protected List<String> print(PrintNode n) throws Exception {
         var out = new LinkedList<String>();
         for (Node x : n.getPrints()) {
-            if (x instanceof StringNode) {
-                out.add(((StringNode)x).getValue());
-                continue;
-            }
-            if (x instanceof VariableNode) {
-                var name = ((VariableNode)x).getValue();
-                if (name.endsWith("$")) {
-                    out.add(stringVars.get(name));
-                    continue;
-                }
-            }
-            var intval = evaluate(x);
-            if (!intval.isEmpty())
-                out.add(intval.get().toString());
-            else {
-                var floatval = evaluatef(x);
-                out.add(floatval.get().toString());
-            }
-
+            var type = TypeVisitor.type(x);
+            if (type == Type.STRING)
+                out.add(evalString(x));
+            else if (type == Type.INT)
+                out.add(Integer.toString(evalInt(x)));
+            else
+                out.add(Float.toString(evalFloat(x)));
         }
         return out;
     }
@@ -461,13 +574,18 @@ public class Interpreter {
         for (VariableNode x : n.getParams()) {
             String name = x.getValue();
             String input = in.remove(0);
+            int slot = slot(x);
 
-            if (name.endsWith("%"))
-                floatVars.put(name, Float.parseFloat(input));
+            if (name.endsWith("%")) {
+                floatVars[slot] = Float.parseFloat(input);
+                isFloat[slot] = true;
+            }
             else if (name.endsWith("$"))
-                stringVars.put(name, input);
-            else
-                intVars.put(name, Integer.parseInt(input));
+                stringVars[slot] = input;
+            else {
+                intVars[slot] = Integer.parseInt(input);
+                isInt[slot] = true;
+            }
         }
     }
 
@@ -475,7 +593,7 @@ public class Interpreter {
         var input = n.getInput();
         String str;
         if (input instanceof VariableNode)
-            str = stringVars.get(((VariableNode) input).getValue());
+            str = stringVars[slot((VariableNode) input)];
         else
             str = ((StringNode) input).getValue();
         System.out.println(str);
@@ -500,23 +618,24 @@ public class Interpreter {
 
     protected void interpret(AssignmentNode n) throws Exception {
         String name = (n.getLeft()).getValue();
+        int slot = slot(n.getLeft());
         if (name.endsWith("%")) {
-            var val = evaluatef(n.getRight());
-            if (val.isEmpty())
+            if (TypeVisitor.type(n.getRight()) == Type.STRING)
                 handleError("Invalid float assignment in statement: " + n + "\n");
-            floatVars.put(name, val.get());
+            floatVars[slot] = evalFloat(n.getRight());
+            isFloat[slot] = true;
         }
         else if (name.endsWith("$")) {
             if (!(n.getRight() instanceof StringNode))
                 handleError("Invalid string assignment in statement: " + n + "\n");
             String val = ((StringNode) n.getRight()).getValue();
-            stringVars.put(name, val);
+            stringVars[slot] = val;
         }
         else {
-            Optional<Integer> val = evaluate(n.getRight());
-            if (val.isEmpty())
+            if (TypeVisitor.type(n.getRight()) != Type.INT)
                 handleError("Invalid int assignment in statement: " + n + "\n");
-            intVars.put(name, val.get());
+            intVars[slot] = evalInt(n.getRight());
+            isInt[slot] = true;
         }
     }
 
@@ -1,5 +1,6 @@
 package basic;
 
+import java.util.Collection;
 import java.util.HashMap;
 public class LabelVisitor implements NodeVisitor {
     private HashMap<String,LabeledStatementNode> labels;
@@ -16,6 +17,20 @@ public class LabelVisitor implements NodeVisitor {
         return labels.get(s);
     }
 
+    /**
+     * @param n labeled statement an edit took out of the program
+     */
+    void remove(LabeledStatementNode n) {
+        labels.remove(n.getLabel(), n);
+    }
+
+    /**
+     * @return every labeled statement seen
+     */
+    public Collection<LabeledStatementNode> getLabeled() {
+        return labels.values();
+    }
+
     public void visit(LabeledStatementNode n) throws Exception {
         var name = n.getLabel();
         if (labels.containsKey(name)) {
@@ -3,12 +3,27 @@ package basic;
 public class LabeledStatementNode extends StatementNode {
     private final String label;
     private final StatementNode orig;
+    private final int symbol;
 
     public LabeledStatementNode(String label, StatementNode orig) {
+        this(label, -1, orig);
+    }
+
+    /**
+     * @param label label name
+     * @param symbol id of the name in the program's SymbolTable, -1 if not known
+     * @param orig the labeled statement
+     */
+    public LabeledStatementNode(String label, int symbol, StatementNode orig) {
         this.label = label;
+        this.symbol = symbol;
         this.orig = orig;
     }
 
+    public int getSymbol() {
+        return symbol;
+    }
+
     public String getLabel() {
         return label;
     }
@@ -2,19 +2,158 @@ package basic;
 
 import basic.Token.TokenType;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.Character;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The BASIC Lexer, which tokenizes the input file
+ * Characters are classified through a table and tokens are scanned by a small
+ * state machine, see CLASSES and TRANSITIONS below.
+ * The tables are built once while the class is initialized and never written
+ * after, so any number of threads can lex at once. A Lexer itself, along with its
+ * CodeHandler and TokenBuffer, is not thread safe and should stay on one thread
  */
 public class Lexer {
+    // character classes, every ascii char maps to one of these through CLASSES
+    private static final int SPACE = 0;
+    private static final int CR = 1;
+    private static final int NEWLINE = 2;
+    private static final int QUOTE = 3;
+    private static final int BACKSLASH = 4;
+    private static final int DIGIT = 5;
+    private static final int DOT = 6;
+    private static final int LETTER = 7;
+    private static final int UNDERSCORE = 8;
+    private static final int SUFFIX = 9; // $ and %
+    private static final int COLON = 10;
+    private static final int SYMBOL = 11;
+    private static final int OTHER = 12;
+    private static final int CLASS_COUNT = 13;
+
+    // scanner states for WORD and NUMBER, plus the ways a scan can finish
+    private static final int WORD = 0;
+    private static final int NUMBER = 1;
+    private static final int FRACTION = 2; // NUMBER after its .
+    private static final int STOP = -1; // token ends before this char
+    private static final int LAST = -2; // token ends with this char
+    private static final int LABEL = -3; // token is a label, this char is its :
+
+    private static final byte[] CLASSES = new byte[128];
+    private static final TokenType[] SYMBOLS = new TokenType[128];
+    private static final byte[][] TRANSITIONS = new byte[3][CLASS_COUNT];
+
+    // keyword trie over case folded chars. KEYWORD_COLUMNS maps a char to its column
+    // (-1 if no keyword uses it), KEYWORD_TRIE[node][column] is the child node (0 if none)
+    // and KEYWORD_TYPES[node] is the keyword ending at that node, if any
+    private static final byte[] KEYWORD_COLUMNS = new byte[128];
+    private static final int[][] KEYWORD_TRIE;
+    private static final TokenType[] KEYWORD_TYPES;
+
+    static {
+        Arrays.fill(CLASSES, (byte) OTHER);
+        CLASSES[' '] = SPACE;
+        CLASSES['\t'] = SPACE;
+        CLASSES['\r'] = CR;
+        CLASSES['\n'] = NEWLINE;
+        CLASSES['"'] = QUOTE;
+        CLASSES['\\'] = BACKSLASH;
+        CLASSES['.'] = DOT;
+        CLASSES['_'] = UNDERSCORE;
+        CLASSES['$'] = SUFFIX;
+        CLASSES['%'] = SUFFIX;
+        CLASSES[':'] = COLON;
+        for (char c = '0'; c <= '9'; c++)
+            CLASSES[c] = DIGIT;
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = LETTER;
+            CLASSES[Character.toUpperCase(c)] = LETTER;
+        }
+
+        SYMBOLS[','] = TokenType.COMMA;
+        SYMBOLS['/'] = TokenType.DIVIDE;
+        SYMBOLS['='] = TokenType.EQUALS;
+        SYMBOLS['>'] = TokenType.GREATER;
+        SYMBOLS['<'] = TokenType.LESS;
+        SYMBOLS['('] = TokenType.LPAREN;
+        SYMBOLS['-'] = TokenType.MINUS;
+        SYMBOLS['*'] = TokenType.MULTIPLY;
+        SYMBOLS['+'] = TokenType.PLUS;
+        SYMBOLS[')'] = TokenType.RPAREN;
+        for (char c = 0; c < 128; c++)
+            if (SYMBOLS[c] != null)
+                CLASSES[c] = SYMBOL;
+
+        // anything not listed ends the token. \r is skipped in every state
+        for (byte[] state : TRANSITIONS)
+            Arrays.fill(state, (byte) STOP);
+        TRANSITIONS[WORD][CR] = WORD;
+        TRANSITIONS[WORD][LETTER] = WORD;
+        TRANSITIONS[WORD][DIGIT] = WORD;
+        TRANSITIONS[WORD][UNDERSCORE] = WORD;
+        TRANSITIONS[WORD][SUFFIX] = LAST;
+        TRANSITIONS[WORD][COLON] = LABEL;
+        TRANSITIONS[NUMBER][CR] = NUMBER;
+        TRANSITIONS[NUMBER][DIGIT] = NUMBER;
+        TRANSITIONS[NUMBER][DOT] = FRACTION;
+        TRANSITIONS[FRACTION][CR] = FRACTION;
+        TRANSITIONS[FRACTION][DIGIT] = FRACTION;
+
+        Arrays.fill(KEYWORD_COLUMNS, (byte) -1);
+        for (char c = 'a'; c <= 'z'; c++) {
+            KEYWORD_COLUMNS[c] = (byte) (c - 'a');
+            KEYWORD_COLUMNS[Character.toUpperCase(c)] = (byte) (c - 'a');
+        }
+        KEYWORD_COLUMNS['$'] = 26;
+        KEYWORD_COLUMNS['%'] = 27;
+
+        var trie = new ArrayList<int[]>();
+        var types = new ArrayList<TokenType>();
+        trie.add(new int[28]);
+        types.add(null);
+        keyword(trie, types, "data", TokenType.DATA);
+        keyword(trie, types, "end", TokenType.END);
+        keyword(trie, types, "for", TokenType.FOR);
+        keyword(trie, types, "function", TokenType.FUNCTION);
+        keyword(trie, types, "gosub", TokenType.GOSUB);
+        keyword(trie, types, "if", TokenType.IF);
+        keyword(trie, types, "input", TokenType.INPUT);
+        keyword(trie, types, "next", TokenType.NEXT);
+        keyword(trie, types, "print", TokenType.PRINT);
+        keyword(trie, types, "read", TokenType.READ);
+        keyword(trie, types, "return", TokenType.RETURN);
+        keyword(trie, types, "step", TokenType.STEP);
+        keyword(trie, types, "then", TokenType.THEN);
+        keyword(trie, types, "to", TokenType.TO);
+        keyword(trie, types, "while", TokenType.WHILE);
+
+        keyword(trie, types, "left$", TokenType.LEFT);
+        keyword(trie, types, "right$", TokenType.RIGHT);
+        keyword(trie, types, "random", TokenType.RANDOM);
+        keyword(trie, types, "mid$", TokenType.MID);
+        keyword(trie, types, "num$", TokenType.NUM);
+        keyword(trie, types, "num%", TokenType.NUMF);
+        keyword(trie, types, "val", TokenType.VAL);
+        keyword(trie, types, "val%", TokenType.VALF);
+        KEYWORD_TRIE = trie.toArray(new int[0][]);
+        KEYWORD_TYPES = types.toArray(new TokenType[0]);
+    }
+
     private int line;
     private int pos;
+    private int keyword; // trie node of the WORD being scanned, -1 once it can't be a keyword
+    private int hash; // String.hashCode() of the WORD being scanned, so its name can be interned
     private CodeHandler reader;
-    private static HashMap<String, TokenType> knownSymbols;
-    private static HashMap<String, TokenType> knownWords;
+    private TokenBuffer tokens;
+    private boolean started; // lexLine has been called before
+    private boolean finished; // lexLine has reached the end of input
+    private boolean quiet; // don't report errors, for chunks that may turn out to be thrown away
 
     /** Constructor. Reads file and attempts to create a CodeHandler for it
      * Also sets the line and pos to the start of the file
@@ -22,11 +161,31 @@ public class Lexer {
      * @throws IOException if the CodeHandler fails to read the file
      */
     public Lexer(String filename) throws IOException {
-        this.reader = new CodeHandler(filename);
+        this(new CodeHandler(filename));
+    }
+
+    /** Constructor for lexing a stream, such as System.in
+     * @param stream the stream, read only as far as tokens are asked for
+     */
+    public Lexer(InputStream stream) {
+        this(new CodeHandler(stream));
+    }
+
+    private Lexer(CodeHandler reader) {
+        this.reader = reader;
+        this.tokens = new TokenBuffer(reader);
         this.line = 1; // lines are indexed from 1
         this.pos = 0;
-        if (knownWords == null)
-            buildMaps();
+    }
+
+    /** Constructor for lexing from part way through a source
+     * @param reader source with its read head at the start of a line, outside any literal
+     * @param line line number of that line
+     */
+    Lexer(CodeHandler reader, int line) {
+        this(reader);
+        this.line = line;
+        this.started = reader.getIndex() > 0; // only the real start of file may end in a lone ENDOFLINE
     }
 
     /** Line lexing method. Reads in the next line of the input and returns
@@ -35,212 +194,386 @@ public class Lexer {
      * @throws Exception if lexer encounters an invalid character
      */
     public LinkedList<Token> lex() throws Exception {
-        var tokens = new LinkedList<Token>();
+        return lexBuffer().toList();
+    }
+
+    /** Lexes the whole input on the fork-join pool in 1MB chunks, see lexParallel(int)
+     * @return buffer of every token in the input, the same as lexBuffer() would give
+     * @throws Exception if lexer encounters an invalid character
+     */
+    public TokenBuffer lexParallel() throws Exception {
+        return lexParallel(1 << 20);
+    }
+
+    /** Lexes the whole input in parallel. The input is cut into chunks at line starts,
+     * each chunk is lexed on the fork-join pool, and the results are stitched back in
+     * order with their lines renumbered. A chunk that a multi-line literal runs into
+     * started in the wrong place, so it is lexed again from where the literal ended.
+     * Streams can't be split and are lexed sequentially
+     * @param chunkSize rough source size of each chunk
+     * @return buffer of every token in the input, the same as lexBuffer() would give
+     * @throws Exception if lexer encounters an invalid character
+     */
+    public TokenBuffer lexParallel(int chunkSize) throws Exception {
+        if (reader.isStream() || reader.getIndex() != 0)
+            return lexBuffer();
+        var starts = new ArrayList<Integer>();
+        for (int start = 0; start >= 0; start = reader.nextLine(start + chunkSize))
+            starts.add(start);
+        starts.add(Integer.MAX_VALUE);
+
+        var chunks = new ArrayList<Callable<Lexer>>();
+        for (int i = 0; i + 1 < starts.size(); i++) {
+            var chunk = chunk(starts.get(i), true);
+            int limit = starts.get(i + 1);
+            chunks.add(() -> chunk.lexUntil(limit));
+        }
+        var results = ForkJoinPool.commonPool().invokeAll(chunks);
+
+        int at = 0; // where the previous chunk actually stopped
+        int lineBase = 0;
+        for (int i = 0; i < results.size(); i++) {
+            int limit = starts.get(i + 1);
+            if (at >= limit)
+                continue; // a literal swallowed the whole chunk
+            Lexer chunk = at == starts.get(i) ? succeeded(results.get(i)) : null;
+            if (chunk == null) // lex it for real, which also reports any error
+                chunk = chunk(at, false).lexUntil(limit);
+            tokens.append(chunk.tokens, lineBase);
+            lineBase += chunk.line - 1;
+            at = chunk.reader.getIndex();
+        }
+        line = lineBase + 1;
+        started = true;
+        finished = true;
+        tokens.trim();
+        return tokens;
+    }
+
+    /** Creates a lexer for part of the same file
+     * @param start source offset of a line start to lex from
+     * @param quiet true if errors should not be reported
+     * @return lexer with its own read head at start
+     */
+    private Lexer chunk(int start, boolean quiet) {
+        var out = new Lexer(new CodeHandler(reader, start), 1);
+        out.quiet = quiet;
+        return out;
+    }
+
+    /** Lexes whole lines until reaching limit, or past it to finish a multi-line literal
+     * @param limit source offset to stop at
+     * @return this lexer
+     */
+    private Lexer lexUntil(int limit) throws Exception {
+        while (reader.getIndex() < limit && lexLine());
+        return this;
+    }
+
+    /**
+     * @param result a lexed chunk
+     * @return the chunk's lexer, or null if lexing it failed
+     */
+    private static Lexer succeeded(Future<Lexer> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException x) {
+            return null;
+        }
+    }
+
+    /** Lexes the whole input into a TokenBuffer, which is what the Parser reads from
+     * @return buffer of every token in the input
+     * @throws Exception if lexer encounters an invalid character
+     */
+    public TokenBuffer lexBuffer() throws Exception {
+        while (lexLine());
+        tokens.trim();
+        return tokens;
+    }
+
+    /**
+     * @return the buffer lexLine adds tokens to
+     */
+    public TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    /** Lets the source forget text no token that is still needed refers to
+     * @param offset source offset of the first token still in use
+     */
+    void release(int offset) {
+        reader.release(Math.min(offset, reader.getIndex()));
+    }
+
+    /** Pull lexing method. Lexes up to and including the next ENDOFLINE
+     * and adds the tokens to getTokens()
+     * @return false if the input was already used up, so nothing was added
+     * @throws Exception if lexer encounters an invalid character
+     */
+    public boolean lexLine() throws Exception {
+        if (finished)
+            return false;
+        int before = tokens.size();
         while (!reader.isDone()) { // first char of all tokens can be safely swallowed
+            int start = reader.getIndex();
             char next = reader.getChar();
-            switch(next) {
-                case ' ': // Space/tab consumption
-                case '\t':
+            switch (classOf(next)) {
+                case SPACE: // Space/tab consumption
                     pos++;
-                    continue;
-                case '\r': // Doesn't increment pos like the other two, basically not there
-                    continue;
-                case '\n': // Newline handling, lex is per line according to rubric
-                    tokens.add(new Token(TokenType.ENDOFLINE, line, pos));
+                    if (!reader.isDone() && classOf(reader.peek(0)) == SPACE) { // indentation, skip it in one go
+                        int spaces = reader.run(CodeHandler.SPACES);
+                        reader.skip(spaces);
+                        pos += spaces;
+                    }
+                    break;
+                case CR: // Doesn't increment pos like the other two, basically not there
+                    break;
+                case NEWLINE: // Newline handling, lex is per line according to rubric
+                    tokens.add(TokenType.ENDOFLINE, line, pos, start, start + 1);
                     line++;
                     pos = 0;
-                    continue;
-                case '"':
-                    tokens.add(processLiteral(next, pos++));
-                    continue;
+                    started = true;
+                    return true;
+                case QUOTE:
+                    processLiteral(pos++);
+                    break;
+                // pass in first letter to processing and increment pos
+                case DIGIT:
+                case DOT: // a leading . doesn't count as the decimal point
+                    processNumber(pos++, start);
+                    break;
+                case LETTER:
+                    processWord(next, pos++, start);
+                    break;
+                case SYMBOL:
+                    processSymbol(next, pos++, start);
+                    break;
+                default:
+                    error("Invalid token '%c' at %d:%d\n", next, line, pos);
             }
+        }
+        // final line *must* end with this, even if there's no final newline
+        int end = reader.getIndex();
+        if (tokens.size() > before || !started)
+            tokens.add(TokenType.ENDOFLINE, line, pos, end, end);
+        started = true;
+        finished = true;
+        return true;
+    }
 
-            // pass in first letter to processing and increment pos
-            if (Character.isDigit(next) || next == '.')
-                tokens.add(processNumber(next, pos++));
-            else if (Character.isAlphabetic(next))
-                tokens.add(processWord(next, pos++));
-            else if (knownSymbols.containsKey(String.valueOf(next))) {
-                tokens.add(processSymbol(next, pos++));
-            }
-            else {
-                System.err.format("Invalid token '%c' at %d:%d\n", next, line, pos);
-                throw new Exception();
+    /** Character classifier. Non-ascii falls back to the slower Character checks
+     * @param c character to classify
+     * @return the class of c, one of the constants at the top of Lexer
+     */
+    private static int classOf(char c) {
+        if (c < 128)
+            return CLASSES[c];
+        if (Character.isAlphabetic(c))
+            return LETTER;
+        if (Character.isDigit(c))
+            return DIGIT;
+        return OTHER;
+    }
+
+    /** Runs the WORD/NUMBER state machine from the read head
+     * @param state state to start in
+     * @return the final state. WORD/NUMBER/FRACTION if the token ended on a char
+     * that isn't part of it (or end of file), LAST or LABEL otherwise
+     * @modifies moves read head and pos past the token
+     */
+    private int scan(int state) {
+        while (!reader.isDone()) {
+            char c = reader.peek(0);
+            int cls = classOf(c);
+            int next = TRANSITIONS[state][cls];
+            if (next == STOP)
+                return state;
+            if (cls != CR) { //not considered a real position
+                pos++;
+                if (state == WORD && next != LABEL) {
+                    keyword = nextKeyword(keyword, c);
+                    hash = 31 * hash + c;
+                }
             }
+            reader.swallow();
+            if (next < 0)
+                return next;
+            state = next;
         }
-        // final line *must* end with this, even if there's no final newline
-        if (tokens.getLast().getType() != TokenType.ENDOFLINE)
-            tokens.add(new Token(TokenType.ENDOFLINE, line, pos));
-        return tokens;
+        return state;
     }
 
     /** WORD token processor
      * Accepts letters, digits, and _ in token. Can end in $/%/:.
      * Stops consuming input at all other characters
+     * Keywords are matched against the trie while scanning, so they never become a String,
+     * and other names are interned so each distinct one only becomes a String once
      * @param next first character in the token
      * @param ipos position of first character of the token
-     * @return full generated token according to rules for what is allowed in a WORD
-     * may be a token for a keyword
+     * @param start source offset of first character of the token
+     * @modifies tokens, adding the full generated token according to rules for what is allowed
+     * in a WORD. may be a token for a keyword
      */
-    private Token processWord(char next, int ipos) {
-        String value = String.valueOf(next);
-        while (!reader.isDone()) {
-            next = reader.peek(0);
-            if (next == '\r') {
-                reader.swallow(); //not considered a real position
-            }
-            else if (Character.isAlphabetic(next) || Character.isDigit(next) || next == '_') {
-                value = addNext(value);
-            }
-            else if (next == '$' || next == '%') { // always considered end of word
-                value = addNext(value);
-                break;
-            }
-            else if (next == ':') {
-                pos++;
-                reader.swallow();
-                return new Token(TokenType.LABEL, line, ipos, value);
-            }
-            else break;
+    private void processWord(char next, int ipos, int start) {
+        keyword = nextKeyword(0, next);
+        hash = next;
+        int run = reader.run(CodeHandler.NAME); // the plain part of the name, all WORD state
+        for (int i = 0; i < run; i++) {
+            char c = reader.peek(i);
+            keyword = nextKeyword(keyword, c);
+            hash = 31 * hash + c;
         }
+        reader.skip(run);
+        pos += run;
+        if (scan(WORD) == LABEL)
+            addName(TokenType.LABEL, ipos, start, reader.getIndex() - 1);
+        else if (keyword > 0 && KEYWORD_TYPES[keyword] != null)
+            tokens.add(KEYWORD_TYPES[keyword], line, ipos, start, reader.getIndex());
+        else
+            addName(TokenType.WORD, ipos, start, reader.getIndex());
+    }
+
+    /** Adds a WORD or LABEL token, interning its name
+     * @param type WORD or LABEL
+     * @param ipos position of first character of the token
+     * @param start source offset of first character of the name
+     * @param end source offset one past the last character of the name
+     * @modifies tokens, and its SymbolTable if the name is new
+     */
+    private void addName(TokenType type, int ipos, int start, int end) {
+        tokens.add(type, line, ipos, start, end, tokens.getSymbols().intern(reader, start, end, hash));
+    }
+
+    /** Steps through the keyword trie
+     * @param node current trie node, or -1 if no keyword matches
+     * @param c next character of the word
+     * @return the child node for c, or -1 if no keyword continues with c
+     */
+    private static int nextKeyword(int node, char c) {
+        if (node < 0 || c >= 128 || KEYWORD_COLUMNS[c] < 0)
+            return -1;
+        int child = KEYWORD_TRIE[node][KEYWORD_COLUMNS[c]];
+        return child == 0 ? -1 : child;
+    }
 
-        if (knownWords.containsKey(value.toLowerCase()))
-            return new Token(knownWords.get(value.toLowerCase()), line, ipos, null);
-        return new Token(TokenType.WORD, line, ipos, value);
+    /** Adds a keyword to the trie, only used while building the tables
+     * @param trie nodes built so far
+     * @param types keyword ending at each node built so far
+     * @param word lower case spelling of the keyword
+     * @param type token type for the keyword
+     */
+    private static void keyword(ArrayList<int[]> trie, ArrayList<TokenType> types, String word, TokenType type) {
+        int node = 0;
+        for (char c : word.toCharArray()) {
+            int column = KEYWORD_COLUMNS[c];
+            if (trie.get(node)[column] == 0) {
+                trie.get(node)[column] = trie.size();
+                trie.add(new int[28]);
+                types.add(null);
+            }
+            node = trie.get(node)[column];
+        }
+        types.set(node, type);
     }
 
     /** NUMBER token processor
      * Accepts digits and one .
      * Stops consuming input at all other characters other a second .
-     * @param next first character in the token
      * @param ipos position of first character of the token
-     * @return full generated token according to rules for what is allowed in a NUMBER
+     * @param start source offset of first character of the token
+     * @modifies tokens, adding the full generated token according to rules for what is allowed in a NUMBER
      */
-    private Token processNumber(char next, int ipos) {
-        String value = String.valueOf(next);
-        boolean decimal = false; // track if decimal has been placed yet
-        while (!reader.isDone()) {
-            next = reader.peek(0);
-            if (next == '\r') {
-                reader.swallow(); //not considered a real position
-            }
-            else if (Character.isDigit(next)) {
-                value = addNext(value);
-            }
-            else if (next == '.' && !decimal) {
-                value = addNext(value);
-                decimal = true;
-            }
-            else break;
-        }
-        return new Token(TokenType.NUMBER, line, ipos, value);
+    private void processNumber(int ipos, int start) {
+        scan(NUMBER);
+        tokens.add(TokenType.NUMBER, line, ipos, start, reader.getIndex());
     }
 
     /** Symbol token processor
      * Accepts known symbols, checks next char for two-char symbols
      * @param next first character in the token
      * @param ipos position of first character of the token
-     * @return associated token for found symbol
+     * @param start source offset of first character of the token
+     * @modifies tokens, adding the associated token for found symbol
      */
-    private Token processSymbol(char next, int ipos) {
-        String value = String.valueOf(next);
-        // kinda cheat-y way of accounting for two char symbols
-        if (reader.remainder().length() > 0 && knownSymbols.containsKey(value + reader.peekString(1))) {
-            value = addNext(value);
+    private void processSymbol(char next, int ipos, int start) {
+        TokenType type = SYMBOLS[next];
+        if (!reader.isDone()) {
+            TokenType pair = twoCharSymbol(next, reader.peek(0));
+            if (pair != null) {
+                swallowNext();
+                type = pair;
+            }
         }
-        return new Token(knownSymbols.get(value), line, ipos, null);
+        tokens.add(type, line, ipos, start, reader.getIndex());
+    }
+
+    /**
+     * @param first first character of a possible two char symbol
+     * @param second second character of a possible two char symbol
+     * @return the type of the two char symbol, or null if there isn't one
+     */
+    private static TokenType twoCharSymbol(char first, char second) {
+        if (first == '<' && second == '=') return TokenType.LEQ;
+        if (first == '<' && second == '>') return TokenType.NOTEQUALS;
+        if (first == '>' && second == '=') return TokenType.GEQ;
+        return null;
     }
 
     /** STRINGLITERAL token processor
      * Reads in all content from read head until next unescaped "
-     * @param next first character in the token
      * @param ipos position of first " of token
-     * @return literal token with value of contents
+     * @modifies tokens, adding the literal token with value of contents
      */
-    private Token processLiteral(char next, int ipos) throws Exception {
-        String value = "";
+    private void processLiteral(int ipos) throws Exception {
+        int start = reader.getIndex();
         while (!reader.isDone()) {
-            next = reader.peek(0);
-            if (next == '\r') {
-                reader.swallow(); //not considered a real position
+            int run = reader.run(CodeHandler.LITERAL); // text with nothing to handle specially
+            if (run > 0) {
+                reader.skip(run);
+                pos += run;
+                continue;
             }
-            else if (next == '\\' && reader.peek(1) == '"') {
-                pos++;
-                reader.swallow();
-                value = addNext(value);
-            }
-            else if (next == '"') { // always considered end of word
-                pos++;
-                reader.swallow();
-                return new Token(TokenType.STRINGLITERAL, line, ipos, value);
-            }
-            else if (next == '\n') { // still need to handle newlines in a literal
-                line++;
-                pos = 0;
-                value = value + reader.getChar();
+            switch (classOf(reader.peek(0))) {
+                case CR:
+                    reader.swallow(); //not considered a real position
+                    break;
+                case BACKSLASH:
+                    if (reader.peek(1) == '"')
+                        swallowNext();
+                    swallowNext();
+                    break;
+                case QUOTE: // always considered end of word
+                    int end = reader.getIndex();
+                    swallowNext();
+                    tokens.add(TokenType.STRINGLITERAL, line, ipos, start, end);
+                    return;
+                case NEWLINE: // still need to handle newlines in a literal
+                    line++;
+                    pos = 0;
+                    reader.swallow();
+                    break;
+                default:
+                    swallowNext();
             }
-            else 
-                value = addNext(value);
         }
-        System.err.format("Unclosed string literal at %d:%d\n", line, ipos);
+        error("Unclosed string literal at %d:%d\n", line, ipos);
+    }
+
+    /** Reports a lexing error, unless this is a speculative parallel chunk
+     * @throws Exception always
+     */
+    private void error(String format, Object... args) throws Exception {
+        if (!quiet)
+            System.err.format(format, args);
         throw new Exception();
     }
 
-    /** Consistent method of adding next char in reader to input string
-     * @param value input string so far
-     * @return input string plus next char in reader
-     * @modifies increments reader read head
+    /** Consistent method of consuming the next char of a token
+     * @modifies increments pos and reader read head
      */
-    private String addNext(String value) {
+    private void swallowNext() {
         pos++;
-        return value + reader.getChar();
-    }
-
-    /** Builds hashmaps for known words and symbols
-     * Reinitializes both hashmaps on each run
-     * @modifies knownWords to have known words
-     * @modifies knownSymbols to have known syombols
-     */
-    private static void buildMaps() {
-        knownWords = new HashMap<String, TokenType>();
-        knownWords.put("data", TokenType.DATA);
-        knownWords.put("end", TokenType.END);
-        knownWords.put("for", TokenType.FOR);
-        knownWords.put("function", TokenType.FUNCTION);
-        knownWords.put("gosub", TokenType.GOSUB);
-        knownWords.put("if", TokenType.IF);
-        knownWords.put("input", TokenType.INPUT);
-        knownWords.put("next", TokenType.NEXT);
-        knownWords.put("print", TokenType.PRINT);
-        knownWords.put("read", TokenType.READ);
-        knownWords.put("return", TokenType.RETURN);
-        knownWords.put("step", TokenType.STEP);
-        knownWords.put("then", TokenType.THEN);
-        knownWords.put("to", TokenType.TO);
-        knownWords.put("while", TokenType.WHILE);
-
-        knownWords.put("left$", TokenType.LEFT);
-        knownWords.put("right$", TokenType.RIGHT);
-        knownWords.put("random", TokenType.RANDOM);
-        knownWords.put("mid$", TokenType.MID);
-        knownWords.put("num$", TokenType.NUM);
-        knownWords.put("num%", TokenType.NUMF);
-        knownWords.put("val", TokenType.VAL);
-        knownWords.put("val%", TokenType.VALF);
-
-        knownSymbols = new HashMap<String, TokenType>();
-        knownSymbols.put(",", TokenType.COMMA);
-        knownSymbols.put("/", TokenType.DIVIDE);
-        knownSymbols.put("=", TokenType.EQUALS);
-        knownSymbols.put(">", TokenType.GREATER);
-        knownSymbols.put("<", TokenType.LESS);
-        knownSymbols.put("(", TokenType.LPAREN);
-        knownSymbols.put("-", TokenType.MINUS);
-        knownSymbols.put("*", TokenType.MULTIPLY);
-        knownSymbols.put("+", TokenType.PLUS);
-        knownSymbols.put(")", TokenType.RPAREN);
-        knownSymbols.put("<=", TokenType.LEQ);
-        knownSymbols.put("<>", TokenType.NOTEQUALS);
-        knownSymbols.put(">=", TokenType.GEQ);
+        reader.swallow();
     }
 }
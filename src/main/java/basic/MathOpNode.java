@@ -1,5 +1,7 @@
 package basic;
 
+import java.util.ArrayList;
+
 public class MathOpNode extends Node {
     enum Operation {
         ADD,
@@ -19,11 +21,33 @@ public class MathOpNode extends Node {
     }
 
     /**
-     * @return math operation as a readable equation surrounded by parenthesis
+     * @return math operation as a readable equation surrounded by parenthesis.
+     * Operations nest as deeply as generated code likes, so they're written out from an explicit stack
      */
     public String toString() {
+        var out = new StringBuilder();
+        var pending = new ArrayList<Object>(); // nodes and the text between them, the next one on top
+        pending.add(this);
+        while (!pending.isEmpty()) {
+            var next = pending.remove(pending.size() - 1);
+            if (next instanceof MathOpNode) {
+                var op = (MathOpNode) next;
+                out.append('(');
+                pending.add(")");
+                pending.add(op.right);
+                pending.add(symbol(op.op));
+                pending.add(op.left);
+            }
+            else {
+                out.append(next);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String symbol(Operation op) {
         String o = "";
-        switch (this.op) {
+        switch (op) {
             case Operation.ADD:
                 o = "+";
                 break;
@@ -37,7 +61,7 @@ public class MathOpNode extends Node {
                 o = "*";
                 break;
         }
-        return "(" + left.toString() + o + right.toString() + ")";
+        return o;
     }
 
     public Node getLeft() {
@@ -1,8 +1,29 @@
 package basic;
 
 public abstract class Node {
+    /** What an expression evaluates to, see TypeVisitor */
+    enum Type {
+        INT,
+        FLOAT,
+        STRING
+    }
+
+    private Type type; // null until a TypeVisitor has seen this expression
+
     public void accept(NodeVisitor v) throws Exception {
         v.visit(this);
     }
+
+    /**
+     * @return the type a TypeVisitor gave this expression, or null if it hasn't been given one
+     */
+    public Type getType() {
+        return type;
+    }
+
+    void setType(Type type) {
+        this.type = type;
+    }
+
     public abstract String toString();
 }
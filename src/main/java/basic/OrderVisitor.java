@@ -6,6 +6,13 @@ public class OrderVisitor implements NodeVisitor {
         last = null;
     }
 
+    /**
+     * @param following statement after the last one that will be visited, for relinking part of a program
+     */
+    OrderVisitor(StatementNode following) {
+        last = following;
+    }
+
     public void visit(Node n) throws Exception {
         if (n instanceof LabeledStatementNode)
             visit((LabeledStatementNode) n);
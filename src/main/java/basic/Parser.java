@@ -4,41 +4,226 @@ import basic.Token.TokenType;
 import basic.MathOpNode.Operation;
 import basic.BooleanNode.Comparison;
 import basic.FunctionNode.Invocation;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The BASIC Parser, which creates an AST from an input list of tokens
  */
 public class Parser {
     private TokenHandler reader;
+    private TokenBuffer buffer; // all of the tokens when they were lexed up front, null otherwise
+    private boolean quiet; // don't report errors, for chunks parsed in parallel
+    private int depth; // parentheses and minus signs that prefix() is currently inside
+    private int maxDepth = MAX_DEPTH;
+
+    // nesting deeper than this is parsed with an explicit stack rather than recursion
+    static final int MAX_DEPTH = 200;
+
+    // binding powers, how tightly an operator holds the operands either side of it
+    private static final int SUM = 10;
+    private static final int PRODUCT = 20;
+    private static final int UNARY = 30;
+
+    // kinds of pending entry in nested() besides binary operators
+    private static final int OPEN = -1;
+    private static final int NEGATE = -2;
+
+    // binary operators by token type ordinal, 0 power for tokens that aren't one
+    private static final int[] BINDING = new int[TokenType.values().length];
+    private static final Operation[] OPERATIONS = new Operation[TokenType.values().length];
+
+    // FIRST sets of function calls and comparisons, what each head token type starts, indexed by ordinal
+    private static final Invocation[] INVOCATIONS = new Invocation[TokenType.values().length];
+    private static final Comparison[] COMPARISONS = new Comparison[TokenType.values().length];
+
+    static {
+        INVOCATIONS[TokenType.LEFT.ordinal()] = Invocation.LEFT;
+        INVOCATIONS[TokenType.MID.ordinal()] = Invocation.MID;
+        INVOCATIONS[TokenType.NUM.ordinal()] = Invocation.NUM;
+        INVOCATIONS[TokenType.NUMF.ordinal()] = Invocation.NUMF;
+        INVOCATIONS[TokenType.RANDOM.ordinal()] = Invocation.RANDOM;
+        INVOCATIONS[TokenType.RIGHT.ordinal()] = Invocation.RIGHT;
+        INVOCATIONS[TokenType.VAL.ordinal()] = Invocation.VAL;
+        INVOCATIONS[TokenType.VALF.ordinal()] = Invocation.VALF;
+        COMPARISONS[TokenType.EQUALS.ordinal()] = Comparison.EQUALS;
+        COMPARISONS[TokenType.LESS.ordinal()] = Comparison.LESS;
+        COMPARISONS[TokenType.GREATER.ordinal()] = Comparison.GREATER;
+        COMPARISONS[TokenType.NOTEQUALS.ordinal()] = Comparison.NOTEQUALS;
+        COMPARISONS[TokenType.LEQ.ordinal()] = Comparison.LEQ;
+        COMPARISONS[TokenType.GEQ.ordinal()] = Comparison.GEQ;
+        infix(TokenType.PLUS, SUM, Operation.ADD);
+        infix(TokenType.MINUS, SUM, Operation.SUBTRACT);
+        infix(TokenType.MULTIPLY, PRODUCT, Operation.MULTIPLY);
+        infix(TokenType.DIVIDE, PRODUCT, Operation.DIVIDE);
+    }
+
+    private static void infix(TokenType t, int power, Operation op) {
+        BINDING[t.ordinal()] = power;
+        OPERATIONS[t.ordinal()] = op;
+    }
 
     public Parser (LinkedList<Token> stream) throws Exception {
         reader = new TokenHandler(stream);
     }
 
+    public Parser (TokenBuffer stream) throws Exception {
+        reader = new TokenHandler(stream);
+        buffer = stream;
+    }
+
+    /** Parser for the statements in part of a buffer
+     * @param stream buffer
+     * @param start index of the first token of a statement
+     * @param end index to stop before, just after an ENDOFLINE
+     */
+    Parser (TokenBuffer stream, int start, int end) throws Exception {
+        reader = new TokenHandler(stream, start, end);
+    }
+
+    /** Parser that pulls tokens from the lexer while it parses
+     * @param lexer a lexer that hasn't been used yet
+     */
+    public Parser (Lexer lexer) throws Exception {
+        reader = new TokenHandler(lexer);
+    }
+
+    /** Sets how deeply parentheses and minus signs can nest before the parser stops recursing
+     * @param depth nesting depth, 0 to always use the explicit stack
+     */
+    void setMaxDepth(int depth) {
+        this.maxDepth = depth;
+    }
+
     public StatementsNode parse() throws Exception {
         return statements();
     }
 
-    private boolean acceptSeparators() {
-        return reader.matchAndRemove(TokenType.ENDOFLINE).isPresent();
+    /** Parses a whole buffer on the fork-join pool in chunks of 64K tokens, see parseParallel(int)
+     * @return the same program parse() would give
+     * @throws Exception on the same parse error parse() would stop at
+     */
+    public StatementsNode parseParallel() throws Exception {
+        return parseParallel(1 << 16);
+    }
+
+    /** Parses in parallel. Every statement ends at an ENDOFLINE, so the tokens are cut
+     * into chunks at statement starts, each chunk is parsed quietly on the fork-join pool,
+     * and the statements are added back in order. The first chunk that fails is parsed
+     * again, along with everything after it, so errors come out as parse() reports them.
+     * Parsers pulling tokens from a Lexer can't be split and parse sequentially
+     * @param chunkSize rough number of tokens in each chunk
+     * @return the same program parse() would give
+     * @throws Exception on the same parse error parse() would stop at
+     */
+    public StatementsNode parseParallel(int chunkSize) throws Exception {
+        if (buffer == null)
+            return parse();
+        var starts = new ArrayList<Integer>();
+        for (int start = 0; start >= 0; start = statementStart(buffer, start + chunkSize))
+            starts.add(start);
+        starts.add(buffer.size());
+
+        var chunks = new ArrayList<Callable<StatementsNode>>();
+        for (int i = 0; i + 1 < starts.size(); i++) {
+            var chunk = chunk(starts.get(i), starts.get(i + 1), true);
+            chunks.add(chunk::statements);
+        }
+        var results = ForkJoinPool.commonPool().invokeAll(chunks);
+
+        var out = new StatementsNode(buffer.getSymbols());
+        for (int i = 0; i < results.size(); i++) {
+            var chunk = succeeded(results.get(i));
+            boolean failed = chunk == null;
+            if (failed) // parse the rest for real, which also reports the error
+                chunk = chunk(starts.get(i), buffer.size(), false).statements();
+            for (var statement : chunk.getAST())
+                out.add(statement);
+            if (failed)
+                break;
+        }
+        return out;
+    }
+
+    /** Creates a parser for part of the same buffer
+     * @param start index of the first token of a statement
+     * @param end index to stop before
+     * @param quiet true if errors should not be reported
+     */
+    private Parser chunk(int start, int end, boolean quiet) throws Exception {
+        var out = new Parser(buffer, start, end);
+        out.maxDepth = maxDepth;
+        out.quiet = quiet;
+        return out;
+    }
+
+    /**
+     * @param from index to look from
+     * @return index of the first token at or after from that starts a line's statement, or -1 if there is none.
+     * That's the first token after a run of ENDOFLINEs, unless a label is waiting for it
+     */
+    private static int statementStart(TokenBuffer tokens, int from) {
+        for (int i = Math.max(from, 1); i < tokens.size(); i++) {
+            if (tokens.getType(i - 1) != TokenType.ENDOFLINE || tokens.getType(i) == TokenType.ENDOFLINE)
+                continue;
+            int before = i - 1;
+            while (before >= 0 && tokens.getType(before) == TokenType.ENDOFLINE)
+                before--;
+            if (before < 0 || tokens.getType(before) != TokenType.LABEL)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param result a parsed chunk
+     * @return the chunk's statements, or null if parsing it failed
+     */
+    private static StatementsNode succeeded(Future<StatementsNode> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException x) {
+            return null;
+        }
+    }
+
+    private boolean acceptSeparators() throws Exception {
+        return reader.match(TokenType.ENDOFLINE);
     }
 
     private void handleError(String msg) throws Exception {
-        var next = reader.peek(0);
-        var bad = next.get();
+        if (quiet)
+            throw new Exception();
+        var bad = reader.peek(0);
+        if (bad == null) {
+            System.err.println("Unexpected end of input");
+            throw new Exception();
+        }
         System.err.format(msg, bad.getLine(), bad.getPos());
-        System.err.println("TokenHandler starts with: " + next.get());
+        System.err.println("TokenHandler starts with: " + bad);
+        throw new Exception();
+    }
+
+    /** Reports a parse error that isn't about the head token, unless this is a parallel chunk
+     * @throws Exception always
+     */
+    private void error(String format, Object... args) throws Exception {
+        if (!quiet)
+            System.err.format(format, args);
         throw new Exception();
     }
 
     private StatementsNode statements() throws Exception {
-        var out = new StatementsNode();
-        Optional<StatementNode> line;
+        var out = new StatementsNode(reader.getSymbols());
+        StatementNode line;
         while (reader.moreTokens()) {
             line = statement();
-            if (line.isPresent()) out.add(line.get());
+            if (line != null) out.add(line);
             if (!acceptSeparators()) // statements should be separated
                 handleError("Missing separator after statement at %d:%d\n");
             while (acceptSeparators()); // eat any additional separators
@@ -47,489 +232,483 @@ public class Parser {
     }
 
     /**
-     * @returns one of the valid BASIC statements
+     * @returns one of the valid BASIC statements, or null if the head can't start one
      */
-    private Optional<StatementNode> statement() throws Exception {
-        Optional<StatementNode> out = Optional.empty();
+    private StatementNode statement() throws Exception {
+        StatementNode out = null;
 
-        Optional<Token> next = reader.matchAndRemove(TokenType.LABEL);
+        int label = reader.matchIndex(TokenType.LABEL);
+        String name = label < 0 ? null : reader.getValue(label);
+        int symbol = label < 0 ? -1 : reader.getSymbol(label);
         while (acceptSeparators());
 
-        if (!out.isPresent())
-            out = printStatement();
-        if (!out.isPresent())
-            out = dataStatement();
-        if (!out.isPresent())
-            out = readStatement();
-        if (!out.isPresent())
-            out = inputStatement();
-        if (!out.isPresent())
-            out = gosubStatement();
-        if (!out.isPresent())
-            out = returnStatement();
-        if (!out.isPresent())
-            out = endStatement();
-        if (!out.isPresent())
-            out = forStatement();
-        if (!out.isPresent())
-            out = nextStatement();
-        if (!out.isPresent())
-            out = ifStatement();
-        if (!out.isPresent())
-            out = whileStatement();
-        if (!out.isPresent())
-            out = assignment();
-
-        if (next.isPresent()) {
-            // we assume that a label has a statement after it, so out isn't empty
-            var labeled = new LabeledStatementNode(next.get().getValue(), out.get());
-            return Optional.of(labeled);
+        // every statement but assignment starts with its own keyword, so the head picks the production
+        TokenType head = reader.peekType(0);
+        if (head != null) {
+            switch (head) {
+                case TokenType.PRINT:
+                    out = printStatement();
+                    break;
+                case TokenType.DATA:
+                    out = dataStatement();
+                    break;
+                case TokenType.READ:
+                    out = readStatement();
+                    break;
+                case TokenType.INPUT:
+                    out = inputStatement();
+                    break;
+                case TokenType.GOSUB:
+                    out = gosubStatement();
+                    break;
+                case TokenType.RETURN:
+                    reader.skip();
+                    out = new ReturnNode();
+                    break;
+                case TokenType.END:
+                    reader.skip();
+                    out = new EndNode();
+                    break;
+                case TokenType.FOR:
+                    out = forStatement();
+                    break;
+                case TokenType.NEXT:
+                    out = nextStatement();
+                    break;
+                case TokenType.IF:
+                    out = ifStatement();
+                    break;
+                case TokenType.WHILE:
+                    out = whileStatement();
+                    break;
+                case TokenType.WORD:
+                    out = assignment();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (name != null) {
+            if (out == null && head == null) // the label is all that's left, so point at it
+                error("Missing statement after label %s at %d:%d\n", name, reader.getLine(label), reader.getPos(label));
+            if (out == null)
+                handleError("Missing statement after label at %d:%d\n");
+            return new LabeledStatementNode(name, symbol, out);
         }
 
         return out;
     }
 
-    private Optional<Node> functionInvocation() throws Exception {
-        Invocation op = null;
-        Optional<Token> next;
-
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.LEFT);
-            if (next.isPresent())
-                op = Invocation.LEFT;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.MID);
-            if (next.isPresent())
-                op = Invocation.MID;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.NUM);
-            if (next.isPresent())
-                op = Invocation.NUM;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.NUMF);
-            if (next.isPresent())
-                op = Invocation.NUMF;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.RANDOM);
-            if (next.isPresent())
-                op = Invocation.RANDOM;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.RIGHT);
-            if (next.isPresent())
-                op = Invocation.RIGHT;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.VAL);
-            if (next.isPresent())
-                op = Invocation.VAL;
-        }
-        if (op == null) {
-            next = reader.matchAndRemove(TokenType.VALF);
-            if (next.isPresent())
-                op = Invocation.VALF;
-        }
+    /**
+     * @returns the function call starting at the head, or null if the head isn't a function name
+     */
+    private Node functionInvocation() throws Exception {
+        TokenType head = reader.peekType(0);
+        Invocation op = head == null ? null : INVOCATIONS[head.ordinal()];
         if (op == null)
-            return Optional.empty();
+            return null;
+        reader.skip();
 
         var out = new FunctionNode(op);
 
-        next = reader.matchAndRemove(TokenType.LPAREN);
-        if (!next.isPresent())
+        if (!reader.match(TokenType.LPAREN))
             handleError("Missing opening parenthesis for function at %d:%d\n");
 
-        boolean argless = reader.matchAndRemove(TokenType.RPAREN).isPresent();
-        while (!argless && next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.STRINGLITERAL);
-            if (next.isPresent()) {
-                out.add(new StringNode(next.get().getValue()));
+        boolean more = !reader.match(TokenType.RPAREN);
+        boolean argless = !more;
+        while (more) {
+            int literal = reader.matchIndex(TokenType.STRINGLITERAL);
+            if (literal >= 0) {
+                out.add(new StringNode(reader.getValue(literal)));
             }
             else {
                 out.add(expression());
             }
-            next = reader.matchAndRemove(TokenType.COMMA);
+            more = reader.match(TokenType.COMMA);
         }
         if (!argless) {
-            next = reader.matchAndRemove(TokenType.RPAREN);
-            if (!next.isPresent())
+            if (!reader.match(TokenType.RPAREN))
                 handleError("Missing closing parenthesis for function at %d:%d\n");
         }
 
-        return Optional.of(out);
+        return out;
     }
 
-    private Optional<StatementNode> forStatement() throws Exception {
-        Optional<Token> next;
-        next = reader.matchAndRemove(TokenType.FOR);
-        if (next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing variable name for FOR at %d:%d\n");
-            var variable = new VariableNode(next.get().getValue());
+    // The statement productions below are only called once statement() has seen their keyword at the head
 
-            next = reader.matchAndRemove(TokenType.EQUALS);
-            if (!next.isPresent())
-                handleError("Missing = sign for FOR at %d:%d\n");
+    private StatementNode forStatement() throws Exception {
+        reader.skip(); // FOR
+        var variable = variable(expect(TokenType.WORD, "Missing variable name for FOR at %d:%d\n"));
+        expect(TokenType.EQUALS, "Missing = sign for FOR at %d:%d\n");
+        int start = Integer.parseInt(reader.getValue(expect(TokenType.NUMBER, "Missing starting number for FOR at %d:%d\n")));
+        expect(TokenType.TO, "Missing TO for FOR at %d:%d\n");
+        int end = Integer.parseInt(reader.getValue(expect(TokenType.NUMBER, "Missing ending number for FOR at %d:%d\n")));
 
-            next = reader.matchAndRemove(TokenType.NUMBER);
-            if (!next.isPresent())
-                handleError("Missing starting number for FOR at %d:%d\n");
-            int start = Integer.parseInt(next.get().getValue());
+        if (!reader.match(TokenType.STEP))
+            return new ForNode(variable, start, end);
 
-            next = reader.matchAndRemove(TokenType.TO);
-            if (!next.isPresent())
-                handleError("Missing TO for FOR at %d:%d\n");
-
-            next = reader.matchAndRemove(TokenType.NUMBER);
-            if (!next.isPresent())
-                handleError("Missing ending number for FOR at %d:%d\n");
-            int end = Integer.parseInt(next.get().getValue());
-
-            next = reader.matchAndRemove(TokenType.STEP);
-            if (!next.isPresent()) {
-                var out = new ForNode(variable, start, end);
-                return Optional.of(out);
-            }
+        int step = Integer.parseInt(reader.getValue(expect(TokenType.NUMBER, "Missing step number for FOR at %d:%d\n")));
+        return new ForNode(variable, start, end, step);
+    }
 
-            next = reader.matchAndRemove(TokenType.NUMBER);
-            if (!next.isPresent())
-                handleError("Missing step number for FOR at %d:%d\n");
-            int step = Integer.parseInt(next.get().getValue());
-            var out = new ForNode(variable, start, end, step);
-            return Optional.of(out);
-        }
-        return Optional.empty();
-    }
-
-    private Optional<StatementNode> nextStatement() throws Exception {
-        Optional<Token> next;
-        next = reader.matchAndRemove(TokenType.NEXT);
-        if (next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing variable for NEXT at %d:%d\n");
-            var variable = new VariableNode(next.get().getValue());
-            var out = new NextNode(variable);
-            return Optional.of(out);
-        }
-        return Optional.empty();
-    }
-
-    private Optional<StatementNode> gosubStatement() throws Exception {
-        Optional<Token> next;
-        next = reader.matchAndRemove(TokenType.GOSUB);
-        if (next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing identifier for GOSUB at %d:%d\n");
-            var out = new GosubNode(next.get().getValue());
-            return Optional.of(out);
-        }
-        return Optional.empty();
-    }
-
-    private Optional<StatementNode> whileStatement() throws Exception {
-        Optional<Token> next;
-        next = reader.matchAndRemove(TokenType.WHILE);
-        if (next.isPresent()) {
-            var condition = booleanExpression();
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing end label for WHILEat %d:%d\n");
-            var out = new WhileNode(condition, next.get().getValue());
-            return Optional.of(out);
-        }
-        return Optional.empty();
+    private StatementNode nextStatement() throws Exception {
+        reader.skip(); // NEXT
+        var variable = variable(expect(TokenType.WORD, "Missing variable for NEXT at %d:%d\n"));
+        return new NextNode(variable);
     }
 
-    private Optional<StatementNode> ifStatement() throws Exception {
-        Optional<Token> next;
-        next = reader.matchAndRemove(TokenType.IF);
-        if (next.isPresent()) {
-            var condition = booleanExpression();
-            next = reader.matchAndRemove(TokenType.THEN);
-            if (!next.isPresent()) {
-                handleError("Missing then for IF at %d:%d\n");
-            }
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing target label for IF at %d:%d\n");
-            var out = new IfNode(condition, next.get().getValue());
-            return Optional.of(out);
-        }
-        return Optional.empty();
+    private StatementNode gosubStatement() throws Exception {
+        reader.skip(); // GOSUB
+        int target = expect(TokenType.WORD, "Missing identifier for GOSUB at %d:%d\n");
+        return new GosubNode(reader.getValue(target), reader.getSymbol(target));
     }
 
-    private Optional<StatementNode> endStatement() {
-        Optional<Token> next = reader.matchAndRemove(TokenType.END);
-        if (next.isEmpty()) return Optional.empty();
-        return Optional.of(new EndNode());
+    private StatementNode whileStatement() throws Exception {
+        reader.skip(); // WHILE
+        var condition = booleanExpression();
+        int target = expect(TokenType.WORD, "Missing end label for WHILEat %d:%d\n");
+        return new WhileNode(condition, reader.getValue(target), reader.getSymbol(target));
     }
 
-    private Optional<StatementNode> returnStatement() {
-        Optional<Token> next = reader.matchAndRemove(TokenType.RETURN);
-        if (next.isEmpty()) return Optional.empty();
-        return Optional.of(new ReturnNode());
+    private StatementNode ifStatement() throws Exception {
+        reader.skip(); // IF
+        var condition = booleanExpression();
+        expect(TokenType.THEN, "Missing then for IF at %d:%d\n");
+        int target = expect(TokenType.WORD, "Missing target label for IF at %d:%d\n");
+        return new IfNode(condition, reader.getValue(target), reader.getSymbol(target));
     }
 
     /**
      * @returns inputNode as a StatementNode
      * looks for first a word or string literal, then variables
      */
-    private Optional<StatementNode> inputStatement() throws Exception {
-        Optional<Token> next;
-        next = reader.matchAndRemove(TokenType.INPUT);
-        if (!next.isPresent()) return Optional.empty();
+    private StatementNode inputStatement() throws Exception {
+        reader.skip(); // INPUT
 
         InputNode out = null;
-        next = reader.matchAndRemove(TokenType.STRINGLITERAL);
-        if (next.isPresent()) {
-            out = new InputNode(new StringNode(next.get().getValue()));
-            next = reader.matchAndRemove(TokenType.COMMA);
-        }
-        else next = reader.peek(0); // just to allow this to work right if its from var
-        while (next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing variable for INPUT at %d:%d\n");
+        boolean more;
+        int prompt = reader.matchIndex(TokenType.STRINGLITERAL);
+        if (prompt >= 0) {
+            out = new InputNode(new StringNode(reader.getValue(prompt)));
+            more = reader.match(TokenType.COMMA);
+        }
+        else more = reader.moreTokens(); // just to allow this to work right if its from var
+        while (more) {
+            var variable = variable(expect(TokenType.WORD, "Missing variable for INPUT at %d:%d\n"));
             if (out == null)
-                out = new InputNode(new VariableNode(next.get().getValue()));
+                out = new InputNode(variable);
             else
-                out.add(new VariableNode(next.get().getValue()));
-            next = reader.matchAndRemove(TokenType.COMMA);
+                out.add(variable);
+            more = reader.match(TokenType.COMMA);
         }
         if (out == null || out.isEmpty())
             handleError("Missing variable for INPUT at %d:%d\n");
-        return Optional.of(out);
+        return out;
     }
 
     /**
      * @returns readNode as a StatementNode
      * similar to dataStatement, but only looks for variables (WORD)
      */
-    private Optional<StatementNode> readStatement() throws Exception {
-        Optional<Token> next;
+    private StatementNode readStatement() throws Exception {
+        reader.skip(); // READ
         var out = new ReadNode();
-        next = reader.matchAndRemove(TokenType.READ);
-        while (next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.WORD);
-            if (!next.isPresent())
-                handleError("Missing variable for READ at %d:%d\n");
-            out.add(new VariableNode(next.get().getValue()));
-            next = reader.matchAndRemove(TokenType.COMMA);
-        }
-        if (out.isEmpty()) return Optional.empty();
-        return Optional.of(out);
+        do {
+            out.add(variable(expect(TokenType.WORD, "Missing variable for READ at %d:%d\n")));
+        } while (reader.match(TokenType.COMMA));
+        return out;
     }
 
     /**
      * @returns dataNode as a StatementNode
      * basically functions like printStatement()
      */
-    private Optional<StatementNode> dataStatement() throws Exception {
-        Optional<Token> next;
+    private StatementNode dataStatement() throws Exception {
+        reader.skip(); // DATA
         var out = new DataNode();
-        next = reader.matchAndRemove(TokenType.DATA);
-        while (next.isPresent()) {
-            next = reader.matchAndRemove(TokenType.STRINGLITERAL);
-            if (next.isPresent())
-                out.add(new StringNode(next.get().getValue()));
+        do {
+            int literal = reader.matchIndex(TokenType.STRINGLITERAL);
+            if (literal >= 0)
+                out.add(new StringNode(reader.getValue(literal)));
             else
                 out.add(expression());
-            next = reader.matchAndRemove(TokenType.COMMA);
-        }
-        if (out.isEmpty()) return Optional.empty();
-        return Optional.of(out);
+        } while (reader.match(TokenType.COMMA));
+        return out;
     }
 
 
     /**
      * @returns assignmentNode as a StatementNode
      */
-    private Optional<StatementNode> assignment() throws Exception {
-        Optional<Token> next;
+    private StatementNode assignment() throws Exception {
         // must start with variable word
-        next = reader.matchAndRemove(TokenType.WORD);
-        if (next.isPresent()) {
-            var left = next.get();
-            next = reader.matchAndRemove(TokenType.EQUALS);
-            if (!next.isPresent()) {
-                System.err.format("Missing '=' for assigning variable %s at %d:%d\n", left.getValue(), left.getLine(), left.getPos());
-                throw new Exception();
-            }
-            Node right;
-            next = reader.matchAndRemove(TokenType.STRINGLITERAL);
-            if (next.isPresent())
-                right = new StringNode(next.get().getValue());
-            else
-                right = expression();
-
-            var leftnode = new VariableNode(left.getValue());
-            var out = new AssignmentNode(leftnode, right);
-            return Optional.of(out);
-        }
-        return Optional.empty();
+        int left = reader.matchIndex(TokenType.WORD);
+        var leftnode = variable(left);
+        int line = reader.getLine(left);
+        int pos = reader.getPos(left);
+        if (!reader.match(TokenType.EQUALS)) {
+            error("Missing '=' for assigning variable %s at %d:%d\n", leftnode.getValue(), line, pos);
+        }
+        Node right;
+        int literal = reader.matchIndex(TokenType.STRINGLITERAL);
+        if (literal >= 0)
+            right = new StringNode(reader.getValue(literal));
+        else
+            right = expression();
+
+        return new AssignmentNode(leftnode, right);
     }
 
     /**
      * @returns printNode as a StatementNode
      */
-    private Optional<StatementNode> printStatement() throws Exception {
-        Optional<Token> next;
+    private StatementNode printStatement() throws Exception {
+        reader.skip(); // PRINT
         var out = new PrintNode();
-        next = reader.matchAndRemove(TokenType.PRINT);
-        while (next.isPresent()) {
+        do {
             // we can currently print strings or expressions
-            next = reader.matchAndRemove(TokenType.STRINGLITERAL);
-            if (next.isPresent())
-                out.add(new StringNode(next.get().getValue()));
+            int literal = reader.matchIndex(TokenType.STRINGLITERAL);
+            if (literal >= 0)
+                out.add(new StringNode(reader.getValue(literal)));
             else
                 out.add(expression());
-            next = reader.matchAndRemove(TokenType.COMMA);
-        }
-        if (out.isEmpty()) return Optional.empty();
-        return Optional.of(out);
+        } while (reader.match(TokenType.COMMA));
+        return out;
+    }
+
+    /** Matches a token that the grammar requires at this point
+     * @param t the required token type
+     * @param msg error format, given the line and position of the offending token
+     * @return index of the matched token, see TokenHandler.matchIndex
+     * @throws Exception if the head isn't of type t
+     */
+    private int expect(TokenType t, String msg) throws Exception {
+        int i = reader.matchIndex(t);
+        if (i < 0)
+            handleError(msg);
+        return i;
+    }
+
+    /**
+     * @param i index of a matched WORD token
+     * @return the variable it names
+     */
+    private VariableNode variable(int i) {
+        return new VariableNode(reader.getValue(i), reader.getSymbol(i));
     }
 
     /**
      * Matches and returns a booleans Expression: exp {<|>|=|<>|<=|>=} exp
      */
     private BooleanNode booleanExpression() throws Exception {
-        Optional<Token> next;
-        Comparison comp = null;
         Node left = expression();
 
-        if (comp == null) {
-            next = reader.matchAndRemove(TokenType.EQUALS);
-            if (next.isPresent())
-                comp = Comparison.EQUALS;
-        }
-        if (comp == null) {
-            next = reader.matchAndRemove(TokenType.LESS);
-            if (next.isPresent())
-                comp = Comparison.LESS;
-        }
-        if (comp == null) {
-            next = reader.matchAndRemove(TokenType.GREATER);
-            if (next.isPresent())
-                comp = Comparison.GREATER;
-        }
-        if (comp == null) {
-            next = reader.matchAndRemove(TokenType.NOTEQUALS);
-            if (next.isPresent())
-                comp = Comparison.NOTEQUALS;
-        }
-        if (comp == null) {
-            next = reader.matchAndRemove(TokenType.LEQ);
-            if (next.isPresent())
-                comp = Comparison.LEQ;
-        }
-        if (comp == null) {
-            next = reader.matchAndRemove(TokenType.GEQ);
-            if (next.isPresent())
-                comp = Comparison.GEQ;
-        }
+        TokenType head = reader.peekType(0);
+        Comparison comp = head == null ? null : COMPARISONS[head.ordinal()];
         if (comp == null) {
             handleError("Missing comparator for boolean at %d:%d\n");
         }
+        reader.skip();
 
         Node right = expression();
-        var out = new BooleanNode(left, comp, right);
-
-        System.out.println(out);
-        return out;
+        return new BooleanNode(left, comp, right);
     }
 
 
     /**
-     * Matches and returns an Expression: TERM {+|- TERM}
+     * Matches and returns an Expression: PREFIX {+|-|*|/ PREFIX}, grouped by binding power
      */
     private Node expression() throws Exception {
-        Optional<Token> next;
-        Node left = term();
+        return expression(0);
+    }
+
+    /**
+     * Pratt parser over the binding power table, each operator takes the prefix after it
+     * together with any operators that bind more tightly than it does
+     * @param min binding power of the operator on the left, operators that bind no tighter are left to it
+     */
+    private Node expression(int min) throws Exception {
+        Node left = prefix();
         while (true) {
-            next = reader.matchAndRemove(TokenType.PLUS);
-            if (next.isPresent()) {
-                left = new MathOpNode(left, Operation.ADD, term());
-                continue;
-            }
-            next = reader.matchAndRemove(TokenType.MINUS);
-            if (next.isPresent()) {
-                left = new MathOpNode(left, Operation.SUBTRACT, term());
-                continue;
+            TokenType head = reader.peekType(0);
+            int power = head == null ? 0 : BINDING[head.ordinal()];
+            if (power <= min)
+                return left;
+            reader.skip();
+            left = new MathOpNode(left, OPERATIONS[head.ordinal()], expression(power));
+        }
+    }
+
+    /**
+     * Matches and returns a Prefix: OPERAND | -PREFIX | ( EXPRESSION )
+     */
+    private Node prefix() throws Exception {
+        var out = operand();
+        if (out != null)
+            return out;
+
+        TokenType head = reader.peekType(0);
+        if (head != TokenType.MINUS && head != TokenType.LPAREN)
+            handleError("Invalid token at %d:%d\n");
+        if (depth >= maxDepth)
+            return nested();
+
+        int next = reader.matchIndex(head);
+        depth++;
+        if (head == TokenType.MINUS) {
+            out = negate(expression(UNARY));
+        }
+        else {
+            int line = reader.getLine(next);
+            int pos = reader.getPos(next);
+            out = expression();
+            if (!reader.match(TokenType.RPAREN)) {
+                error("Missing closing ')' for opening '(' at %d:%d\n", line, pos);
             }
-            break;
         }
-        return left;
+        depth--;
+        return out;
     }
 
     /**
-     * Matches and returns a Term: FACTOR {*|/ FACTOR}
+     * Matches a Prefix the same way prefix() does, but keeps the operators and parentheses
+     * it is inside on an explicit stack instead of the call stack, so that how deeply
+     * generated code nests is only limited by the heap. Function arguments still recurse
      */
-    private Node term() throws Exception {
-        Optional<Token> next;
-        Node left = factor();
+    private Node nested() throws Exception {
+        var operands = new ArrayList<Node>();
+        var pending = new Pending();
         while (true) {
-            next = reader.matchAndRemove(TokenType.MULTIPLY);
-            if (next.isPresent()) {
-                left = new MathOpNode(left, Operation.MULTIPLY, factor());
-                continue;
+            // open parentheses and minus signs in front of the next operand
+            while (true) {
+                TokenType head = reader.peekType(0);
+                int kind;
+                if (head == TokenType.LPAREN)
+                    kind = OPEN;
+                else if (head == TokenType.MINUS && reader.peekType(1) != TokenType.NUMBER)
+                    kind = NEGATE;
+                else
+                    break;
+                int next = reader.matchIndex(head);
+                pending.push(kind, reader.getLine(next), reader.getPos(next));
             }
-            next = reader.matchAndRemove(TokenType.DIVIDE);
-            if (next.isPresent()) {
-                left = new MathOpNode(left, Operation.DIVIDE, factor());
-                continue;
+            var operand = operand();
+            if (operand == null)
+                handleError("Invalid token at %d:%d\n");
+            operands.add(operand);
+
+            // operators after it, closing parentheses as they come
+            while (true) {
+                TokenType head = reader.peekType(0);
+                int power = head == null ? 0 : BINDING[head.ordinal()];
+                if (power > 0 && pending.open > 0) {
+                    reduce(operands, pending, power);
+                    pending.push(head.ordinal(), 0, 0);
+                    reader.skip();
+                    break;
+                }
+                reduce(operands, pending, 1);
+                if (pending.open == 0) // a whole prefix, any operator after it is the caller's
+                    return operands.get(0);
+                if (!reader.match(TokenType.RPAREN)) {
+                    int top = pending.size - 1;
+                    error("Missing closing ')' for opening '(' at %d:%d\n", pending.lines[top], pending.positions[top]);
+                }
+                pending.pop();
+            }
+        }
+    }
+
+    /** Applies the pending operators, down to the innermost open parenthesis, that bind at least as tightly as power
+     * @param operands operands still waiting for an operator, the last one on top
+     * @param pending operators and parentheses waiting for their operands
+     * @param power binding power of the operator about to be pushed, 1 to apply everything
+     * @modifies operands and pending
+     */
+    private void reduce(ArrayList<Node> operands, Pending pending, int power) {
+        while (pending.size > 0) {
+            int kind = pending.kinds[pending.size - 1];
+            if (kind == OPEN || (kind == NEGATE ? UNARY : BINDING[kind]) < power)
+                return;
+            pending.pop();
+            int last = operands.size() - 1;
+            if (kind == NEGATE) {
+                operands.set(last, negate(operands.get(last)));
+            }
+            else {
+                var right = operands.remove(last);
+                operands.set(last - 1, new MathOpNode(operands.get(last - 1), OPERATIONS[kind], right));
             }
-            break;
         }
-        return left;
     }
 
     /**
-     * Matches and returns a Factor: number | variable | ( EXPRESSION )
+     * Matches and returns an Operand: function | [-]number | variable, or null if the head doesn't start one
      */
-    private Node factor() throws Exception {
+    private Node operand() throws Exception {
         var func = functionInvocation();
-        if (func.isPresent())
-            return func.get();
+        if (func != null)
+            return func;
 
-        Optional<Token> next;
+        TokenType head = reader.peekType(0);
         int sign = 1;
-        next = reader.matchAndRemove(TokenType.MINUS);
-        if (next.isPresent()) sign = -1;
-        next = reader.matchAndRemove(TokenType.NUMBER);
-        if (next.isPresent()) {
+        if (head == TokenType.MINUS && reader.peekType(1) == TokenType.NUMBER) {
+            // negative literals are folded into the number
+            reader.skip();
+            head = TokenType.NUMBER;
+            sign = -1;
+        }
+        if (head == TokenType.NUMBER) {
+            String number = reader.getValue(reader.matchIndex(TokenType.NUMBER));
             try {
-                int val = sign * Integer.parseInt(next.get().getValue());
+                int val = sign * Integer.parseInt(number);
                 return new IntegerNode(val);
             }
             catch (NumberFormatException e)
             {
-                float val = sign * Float.parseFloat(next.get().getValue());
+                float val = sign * Float.parseFloat(number);
                 return new FloatNode(val);
             }
         }
-        next = reader.matchAndRemove(TokenType.WORD);
-        if (next.isPresent()) {
-            String val = next.get().getValue();
-            return new VariableNode(val);
+        if (head == TokenType.WORD) {
+            return variable(reader.matchIndex(TokenType.WORD));
         }
-        next = reader.matchAndRemove(TokenType.LPAREN);
-        if (next.isPresent()) {
-            Node expNode = expression();
-            var bad = next.get();
-            next = reader.matchAndRemove(TokenType.RPAREN);
-            if (!next.isPresent()) {
-                System.err.format("Missing closing ')' for opening '(' at %d:%d\n", bad.getLine(), bad.getPos());
-                throw new Exception();
+        return null;
+    }
+
+    /**
+     * @return node for -value, as there is no unary operation
+     */
+    private Node negate(Node value) {
+        return new MathOpNode(new IntegerNode(0), Operation.SUBTRACT, value);
+    }
+
+    /** Operators and open parentheses that nested() has passed but not yet applied */
+    private static class Pending {
+        int[] kinds = new int[16]; // OPEN, NEGATE or ordinal of a binary operator's token type
+        int[] lines = new int[16];
+        int[] positions = new int[16];
+        int size;
+        int open; // how many of them are OPEN
+
+        void push(int kind, int line, int pos) {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
             }
-            return expNode;
+            kinds[size] = kind;
+            lines[size] = line;
+            positions[size] = pos;
+            size++;
+            if (kind == OPEN)
+                open++;
+        }
+
+        void pop() {
+            if (kinds[--size] == OPEN)
+                open--;
         }
-        handleError("Invalid token at %d:%d\n");
-        throw new Exception();
     }
 }
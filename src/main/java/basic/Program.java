@@ -0,0 +1,165 @@
+package basic;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed program along with what the interpreter works out from it before it runs:
+ * every statement linked to the one after it, the labels, the DATA pool, and every
+ * jump resolved to the statement it goes to.
+ * Programs can be stored in a ProgramCache and loaded again without parsing
+ */
+public final class Program {
+    private final StatementsNode ast;
+    private final LabelVisitor labels;
+    private final DataVisitor data;
+
+    /** Prepares a freshly parsed program in a single pass over its statements, which links
+     * each one to the statement after it, collects the DATA pool and registers the labels
+     * @param ast the parsed program
+     * @throws Exception if a label is repeated, or a jump can't be resolved, see resolve()
+     */
+    public Program(StatementsNode ast) throws Exception {
+        this(ast, new LabelVisitor(), new DataVisitor());
+        StatementNode last = null;
+        for (StatementNode s : ast.getAST()) {
+            link(last, s);
+            StatementNode inner = s;
+            if (s instanceof LabeledStatementNode) {
+                labels.visit((LabeledStatementNode) s);
+                inner = ((LabeledStatementNode) s).getStatement();
+            }
+            if (inner instanceof DataNode)
+                data.visit((DataNode) inner);
+            last = s;
+        }
+        link(last, null);
+        resolve();
+    }
+
+    /** Program that is already prepared, for ProgramCache
+     * @param ast the program, with its statements already linked
+     * @param labels every label in the program
+     * @param data the DATA pool
+     */
+    Program(StatementsNode ast, LabelVisitor labels, DataVisitor data) {
+        this.ast = ast;
+        this.labels = labels;
+        this.data = data;
+    }
+
+    /** Points every IF and GOSUB at the statement with its label, every WHILE at its end label
+     * and every FOR at its NEXT, so nothing is looked up by name or searched for as the program runs.
+     * Every expression is given its type along the way
+     * @throws Exception if an IF or GOSUB label is missing, a WHILE's end label is missing or
+     * comes before it, or FORs and NEXTs don't pair up by variable the way they nest
+     */
+    void resolve() throws Exception {
+        var passed = new IdentityHashMap<LabeledStatementNode,Boolean>();
+        var types = new TypeVisitor();
+        for (StatementNode s : ast.getAST()) {
+            s.accept(types);
+            if (s instanceof LabeledStatementNode) {
+                passed.put((LabeledStatementNode) s, true);
+                s = ((LabeledStatementNode) s).getStatement();
+            }
+            if (s instanceof IfNode) {
+                var n = (IfNode) s;
+                n.setJump(target(n.getTarget(), n));
+            }
+            else if (s instanceof GosubNode) {
+                var n = (GosubNode) s;
+                n.setJump(target(n.getValue(), n));
+            }
+            else if (s instanceof WhileNode) {
+                var n = (WhileNode) s;
+                var end = target(n.getValue(), n);
+                if (passed.containsKey(end))
+                    error("End label for " + n + " comes before it");
+                n.setEnd(end);
+            }
+        }
+        var pairs = new IdentityHashMap<ForNode,NextNode>();
+        var open = new ArrayList<ForNode>();
+        var closing = new ArrayList<NextNode>();
+        pair(ast.getAST(), pairs, open, closing);
+        if (!closing.isEmpty())
+            error("No FOR for " + closing.get(0));
+        if (!open.isEmpty())
+            error("No NEXT for " + open.get(open.size() - 1));
+        for (var p : pairs.entrySet())
+            p.getKey().setMatching(p.getValue());
+    }
+
+    /** Pairs up FORs and NEXTs the way they nest, each NEXT closing the innermost FOR still open
+     * @param statements statements to pair up, which can be only part of a program
+     * @param pairs gets every FOR whose NEXT is among the statements, with that NEXT
+     * @param open gets the FORs left without a NEXT, innermost last
+     * @param closing gets the NEXTs that close FORs from before the statements, innermost first
+     * @throws Exception if a NEXT closes a FOR of another variable
+     */
+    static void pair(List<StatementNode> statements, Map<ForNode,NextNode> pairs, List<ForNode> open,
+            List<NextNode> closing) throws Exception {
+        for (StatementNode s : statements) {
+            if (s instanceof LabeledStatementNode)
+                s = ((LabeledStatementNode) s).getStatement();
+            if (s instanceof ForNode)
+                open.add((ForNode) s);
+            else if (s instanceof NextNode) {
+                var n = (NextNode) s;
+                if (open.isEmpty()) {
+                    closing.add(n);
+                    continue;
+                }
+                var f = open.remove(open.size() - 1);
+                if (!f.getVar().getValue().equals(n.getVar().getValue()))
+                    error("Mismatched variable for " + f + " and " + n);
+                pairs.put(f, n);
+            }
+        }
+    }
+
+    /**
+     * @param label name of the label
+     * @param jump the statement jumping to it, for the error
+     * @return the statement with that label
+     * @throws Exception if there's no such label
+     */
+    private LabeledStatementNode target(String label, StatementNode jump) throws Exception {
+        var target = labels.get(label);
+        if (target == null)
+            error("Missing label " + label + " for " + jump);
+        return target;
+    }
+
+    private static void error(String msg) throws Exception {
+        System.err.println(msg);
+        throw new Exception();
+    }
+
+    /** Links a statement the way OrderVisitor does, a labeled statement along with the one it labels
+     * @param s statement to link, nothing happens if it's null
+     * @param next statement that comes after it
+     */
+    private static void link(StatementNode s, StatementNode next) {
+        if (s == null)
+            return;
+        s.setNext(next);
+        if (s instanceof LabeledStatementNode)
+            ((LabeledStatementNode) s).getStatement().setNext(next);
+    }
+
+    public StatementsNode getAST() {
+        return ast;
+    }
+
+    public LabelVisitor getLabels() {
+        return labels;
+    }
+
+    public DataVisitor getData() {
+        return data;
+    }
+}
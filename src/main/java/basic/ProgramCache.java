@@ -0,0 +1,595 @@
+package basic;
+
+import basic.BooleanNode.Comparison;
+import basic.FunctionNode.Invocation;
+import basic.MathOpNode.Operation;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * On-disk cache of prepared programs, so running an unchanged file skips lexing and parsing.
+ * Each entry is named by a 128-bit hash of the source text and the format version, and holds
+ * the AST, its symbol table, the statement order, the labels and the DATA pool in a binary
+ * form that loads with a single read. Entries of other versions are never read, so bumping
+ * FORMAT_VERSION whenever nodes or the layout below change is all it takes to invalidate them
+ */
+public class ProgramCache {
+    public static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x42415343; // "BASC"
+    private static final String SUFFIX = ".bin";
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // node tags
+    private static final byte ASSIGNMENT = 1;
+    private static final byte DATA = 2;
+    private static final byte END = 3;
+    private static final byte FOR = 4;
+    private static final byte GOSUB = 5;
+    private static final byte IF = 6;
+    private static final byte INPUT = 7;
+    private static final byte LABELED = 8;
+    private static final byte NEXT = 9;
+    private static final byte PRINT = 10;
+    private static final byte READ = 11;
+    private static final byte RETURN = 12;
+    private static final byte WHILE = 13;
+    private static final byte BOOLEAN = 14;
+    private static final byte FLOAT = 15;
+    private static final byte FUNCTION = 16;
+    private static final byte INTEGER = 17;
+    private static final byte MATHOP = 18;
+    private static final byte STRING = 19;
+    private static final byte VARIABLE = 20;
+
+    private final Path directory;
+
+    /**
+     * @param directory where entries are kept, created when the first one is stored
+     */
+    public ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /** Loads a program from the cache, or parses it and stores it if it isn't there
+     * @param source BASIC source file
+     * @return the prepared program
+     * @throws Exception if the source doesn't lex or parse, with the error already reported
+     */
+    public Program load(Path source) throws Exception {
+        byte[] text = Files.readAllBytes(source);
+        Path entry = entry(text);
+        if (Files.exists(entry)) {
+            var cached = read(entry);
+            if (cached != null)
+                return cached;
+        }
+        // parse the bytes that were hashed, in case the file changes underneath us
+        var program = new Program(new Parser(new Lexer(new ByteArrayInputStream(text))).parse());
+        try {
+            store(program, entry, source.toString());
+        } catch (IOException x) { // a cache that can't be written to just means parsing next time too
+            System.err.format("Couldn't cache %s: %s%n", source, x);
+        }
+        return program;
+    }
+
+    /** Removes the entry for a source file
+     * @param source BASIC source file
+     * @return true if there was one
+     */
+    public boolean evict(Path source) throws IOException {
+        return Files.deleteIfExists(entry(Files.readAllBytes(source)));
+    }
+
+    /** Removes every entry, of any format version
+     * @return the number removed
+     */
+    public int clear() throws IOException {
+        int removed = 0;
+        for (Path entry : entries()) {
+            Files.delete(entry);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * @return a line describing each entry: its file, format version, source and size
+     */
+    public List<String> list() throws IOException {
+        var out = new ArrayList<String>();
+        for (Path entry : entries()) {
+            var in = ByteBuffer.wrap(Files.readAllBytes(entry));
+            try {
+                if (in.getInt() != MAGIC) {
+                    out.add(entry.getFileName() + " not a cached program");
+                    continue;
+                }
+                int version = in.getInt();
+                if (version != FORMAT_VERSION) {
+                    out.add(String.format("%s v%d stale", entry.getFileName(), version));
+                    continue;
+                }
+                String source = string(in);
+                out.add(String.format("%s v%d %s: %d statements, %d symbols, %d labels, %d data, %d bytes",
+                        entry.getFileName(), version, source, in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.capacity()));
+            } catch (BufferUnderflowException x) {
+                out.add(entry.getFileName() + " truncated");
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param text source text
+     * @return where the entry for text is kept
+     */
+    private Path entry(byte[] text) {
+        return directory.resolve(hash(text) + "-v" + FORMAT_VERSION + SUFFIX);
+    }
+
+    /** MurmurHash3 x64 128 of the text. A cryptographic digest would cost more than loading
+     * the entry does on a cold JVM, and entries only ever come from the user's own sources
+     * @param text source text
+     * @return the hash as 32 hex digits
+     */
+    static String hash(byte[] text) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = text.length & ~15;
+        for (int i = 0; i < blocks; i += 16) {
+            long k1 = (long) LONGS.get(text, i);
+            long k2 = (long) LONGS.get(text, i + 8);
+            h1 ^= Long.rotateLeft(k1 * c1, 31) * c2;
+            h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52dce729;
+            h2 ^= Long.rotateLeft(k2 * c2, 33) * c1;
+            h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = blocks; i < text.length; i++) {
+            int shift = ((i - blocks) & 7) * 8;
+            if (i - blocks < 8)
+                k1 ^= (text[i] & 0xffL) << shift;
+            else
+                k2 ^= (text[i] & 0xffL) << shift;
+        }
+        if (text.length - blocks > 8)
+            h2 ^= Long.rotateLeft(k2 * c2, 33) * c1;
+        if (text.length > blocks)
+            h1 ^= Long.rotateLeft(k1 * c1, 31) * c2;
+
+        h1 ^= text.length;
+        h2 ^= text.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = mix(h1);
+        h2 = mix(h2);
+        h1 += h2;
+        h2 += h1;
+        return HexFormat.of().toHexDigits(h1) + HexFormat.of().toHexDigits(h2);
+    }
+
+    private static long mix(long k) {
+        k = (k ^ (k >>> 33)) * 0xff51afd7ed558ccdL;
+        k = (k ^ (k >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return k ^ (k >>> 33);
+    }
+
+    private List<Path> entries() throws IOException {
+        var out = new ArrayList<Path>();
+        if (!Files.isDirectory(directory))
+            return out;
+        try (var files = Files.list(directory)) {
+            files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(out::add);
+        }
+        return out;
+    }
+
+    /** Writes an entry, to a temporary file first so that readers never see half of one
+     * @param program the prepared program
+     * @param entry where the entry goes
+     * @param source name of the source file, only kept for list()
+     */
+    private void store(Program program, Path entry, String source) throws IOException {
+        Files.createDirectories(directory);
+        var statements = program.getAST().getAST();
+        var symbols = program.getAST().getSymbols();
+        var labeled = program.getLabels().getLabeled();
+        var data = program.getData().getData();
+
+        // statements and DATA items are stored by where they are in the program
+        var index = new IdentityHashMap<Node,Integer>();
+        var items = new IdentityHashMap<Node,int[]>();
+        int i = 0;
+        for (StatementNode s : statements) {
+            index.put(s, i);
+            var inner = s instanceof LabeledStatementNode ? ((LabeledStatementNode) s).getStatement() : s;
+            if (inner instanceof DataNode) {
+                int j = 0;
+                for (Node item : ((DataNode) inner).getData())
+                    items.put(item, new int[] {i, j++});
+            }
+            i++;
+        }
+
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            string(out, source);
+            out.writeInt(statements.size());
+            out.writeInt(symbols.size());
+            out.writeInt(labeled.size());
+            out.writeInt(data.size());
+            for (int id = 0; id < symbols.size(); id++)
+                string(out, symbols.getName(id));
+            for (StatementNode s : statements)
+                write(out, s);
+            for (StatementNode s : statements)
+                out.writeInt(s.next() == null ? -1 : index.get(s.next()));
+            for (LabeledStatementNode s : labeled)
+                out.writeInt(index.get(s));
+            for (Node item : data) { // pool items point back into the DATA statements
+                int[] at = items.get(item);
+                if (at == null) {
+                    out.writeInt(-1);
+                    write(out, item);
+                }
+                else {
+                    out.writeInt(at[0]);
+                    out.writeInt(at[1]);
+                }
+            }
+        } catch (IOException x) {
+            Files.deleteIfExists(temp);
+            throw x;
+        }
+        Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Reads an entry back
+     * @param entry an entry written by store
+     * @return the program, or null if the entry isn't usable
+     */
+    private Program read(Path entry) {
+        try {
+            var in = ByteBuffer.wrap(Files.readAllBytes(entry));
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+                return null;
+            string(in); // source name
+            int count = in.getInt();
+            var symbols = new SymbolTable();
+            int names = in.getInt();
+            int labelCount = in.getInt();
+            int dataCount = in.getInt();
+            for (int id = 0; id < names; id++)
+                symbols.intern(string(in));
+
+            var ast = new StatementsNode(symbols);
+            var statements = new StatementNode[count];
+            for (int i = 0; i < count; i++) {
+                statements[i] = (StatementNode) read(in, symbols);
+                ast.add(statements[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                int next = in.getInt();
+                var link = next < 0 ? null : statements[next];
+                statements[i].setNext(link);
+                if (statements[i] instanceof LabeledStatementNode)
+                    ((LabeledStatementNode) statements[i]).getStatement().setNext(link);
+            }
+            var labels = new LabelVisitor();
+            for (int i = 0; i < labelCount; i++)
+                labels.visit((LabeledStatementNode) statements[in.getInt()]);
+
+            var data = new DataVisitor();
+            List<Node> items = null; // DATA statement that pool items are being taken from
+            int from = -1;
+            for (int i = 0; i < dataCount; i++) {
+                int at = in.getInt();
+                if (at < 0) {
+                    data.add(read(in, symbols));
+                    continue;
+                }
+                if (at != from) {
+                    var s = statements[at];
+                    if (s instanceof LabeledStatementNode)
+                        s = ((LabeledStatementNode) s).getStatement();
+                    items = new ArrayList<>(((DataNode) s).getData());
+                    from = at;
+                }
+                data.add(items.get(in.getInt()));
+            }
+            var program = new Program(ast, labels, data);
+            program.resolve(); // jumps are quick to resolve again, so they aren't stored
+            return program;
+        } catch (Exception x) { // truncated or otherwise broken, so it's as good as missing
+            return null;
+        }
+    }
+
+    private static void write(DataOutputStream out, Node n) throws IOException {
+        if (n instanceof IntegerNode) {
+            out.writeByte(INTEGER);
+            out.writeInt(((IntegerNode) n).getValue());
+        }
+        else if (n instanceof FloatNode) {
+            out.writeByte(FLOAT);
+            out.writeFloat(((FloatNode) n).getValue());
+        }
+        else if (n instanceof StringNode) {
+            out.writeByte(STRING);
+            string(out, ((StringNode) n).getValue());
+        }
+        else if (n instanceof VariableNode) {
+            var v = (VariableNode) n;
+            out.writeByte(VARIABLE);
+            name(out, v.getValue(), v.getSymbol());
+        }
+        else if (n instanceof MathOpNode) {
+            // operations nest as deeply as generated code likes, so they're written from an explicit stack
+            var pending = new ArrayList<Node>();
+            pending.add(n);
+            while (!pending.isEmpty()) {
+                var next = pending.remove(pending.size() - 1);
+                if (next instanceof MathOpNode) {
+                    var op = (MathOpNode) next;
+                    out.writeByte(MATHOP);
+                    out.writeByte(op.getOp().ordinal());
+                    pending.add(op.getRight());
+                    pending.add(op.getLeft());
+                }
+                else {
+                    write(out, next);
+                }
+            }
+        }
+        else if (n instanceof BooleanNode) {
+            var b = (BooleanNode) n;
+            out.writeByte(BOOLEAN);
+            out.writeByte(b.getOp().ordinal());
+            write(out, b.getLeft());
+            write(out, b.getRight());
+        }
+        else if (n instanceof FunctionNode) {
+            var f = (FunctionNode) n;
+            out.writeByte(FUNCTION);
+            out.writeByte(f.getValue().ordinal());
+            list(out, f.getData());
+        }
+        else if (n instanceof AssignmentNode) {
+            var a = (AssignmentNode) n;
+            out.writeByte(ASSIGNMENT);
+            write(out, a.getLeft());
+            write(out, a.getRight());
+        }
+        else if (n instanceof PrintNode) {
+            out.writeByte(PRINT);
+            list(out, ((PrintNode) n).getPrints());
+        }
+        else if (n instanceof DataNode) {
+            out.writeByte(DATA);
+            list(out, ((DataNode) n).getData());
+        }
+        else if (n instanceof ReadNode) {
+            out.writeByte(READ);
+            list(out, ((ReadNode) n).getReads());
+        }
+        else if (n instanceof InputNode) {
+            var input = (InputNode) n;
+            out.writeByte(INPUT);
+            write(out, input.getInput());
+            list(out, input.getParams());
+        }
+        else if (n instanceof ForNode) {
+            var f = (ForNode) n;
+            out.writeByte(FOR);
+            write(out, f.getVar());
+            out.writeInt(f.getStart());
+            out.writeInt(f.getEnd());
+            out.writeInt(f.getInc());
+        }
+        else if (n instanceof NextNode) {
+            out.writeByte(NEXT);
+            write(out, ((NextNode) n).getVar());
+        }
+        else if (n instanceof IfNode) {
+            var f = (IfNode) n;
+            out.writeByte(IF);
+            write(out, f.getCondition());
+            name(out, f.getTarget(), f.getSymbol());
+        }
+        else if (n instanceof WhileNode) {
+            var w = (WhileNode) n;
+            out.writeByte(WHILE);
+            write(out, w.getCondition());
+            name(out, w.getValue(), w.getSymbol());
+        }
+        else if (n instanceof GosubNode) {
+            var g = (GosubNode) n;
+            out.writeByte(GOSUB);
+            name(out, g.getValue(), g.getSymbol());
+        }
+        else if (n instanceof LabeledStatementNode) {
+            var l = (LabeledStatementNode) n;
+            out.writeByte(LABELED);
+            name(out, l.getLabel(), l.getSymbol());
+            write(out, l.getStatement());
+        }
+        else if (n instanceof ReturnNode) {
+            out.writeByte(RETURN);
+        }
+        else if (n instanceof EndNode) {
+            out.writeByte(END);
+        }
+        else {
+            throw new IOException("Can't cache node " + n);
+        }
+    }
+
+    private static Node read(ByteBuffer in, SymbolTable symbols) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case INTEGER:
+                return new IntegerNode(in.getInt());
+            case FLOAT:
+                return new FloatNode(in.getFloat());
+            case STRING:
+                return new StringNode(string(in));
+            case VARIABLE: {
+                int symbol = in.getInt();
+                return new VariableNode(name(in, symbol, symbols), symbol);
+            }
+            case MATHOP:
+                return operation(in, symbols);
+            case BOOLEAN: {
+                var op = Comparison.values()[in.get()];
+                var left = read(in, symbols);
+                return new BooleanNode(left, op, read(in, symbols));
+            }
+            case FUNCTION: {
+                var out = new FunctionNode(Invocation.values()[in.get()]);
+                for (int i = in.getInt(); i > 0; i--)
+                    out.add(read(in, symbols));
+                return out;
+            }
+            case ASSIGNMENT: {
+                var left = (VariableNode) read(in, symbols);
+                return new AssignmentNode(left, read(in, symbols));
+            }
+            case PRINT: {
+                var out = new PrintNode();
+                for (int i = in.getInt(); i > 0; i--)
+                    out.add(read(in, symbols));
+                return out;
+            }
+            case DATA: {
+                var out = new DataNode();
+                for (int i = in.getInt(); i > 0; i--)
+                    out.add(read(in, symbols));
+                return out;
+            }
+            case READ: {
+                var out = new ReadNode();
+                for (int i = in.getInt(); i > 0; i--)
+                    out.add((VariableNode) read(in, symbols));
+                return out;
+            }
+            case INPUT: {
+                var out = new InputNode(read(in, symbols));
+                for (int i = in.getInt(); i > 0; i--)
+                    out.add((VariableNode) read(in, symbols));
+                return out;
+            }
+            case FOR: {
+                var variable = (VariableNode) read(in, symbols);
+                int start = in.getInt();
+                int end = in.getInt();
+                return new ForNode(variable, start, end, in.getInt());
+            }
+            case NEXT:
+                return new NextNode((VariableNode) read(in, symbols));
+            case IF: {
+                var condition = (BooleanNode) read(in, symbols);
+                int symbol = in.getInt();
+                return new IfNode(condition, name(in, symbol, symbols), symbol);
+            }
+            case WHILE: {
+                var condition = (BooleanNode) read(in, symbols);
+                int symbol = in.getInt();
+                return new WhileNode(condition, name(in, symbol, symbols), symbol);
+            }
+            case GOSUB: {
+                int symbol = in.getInt();
+                return new GosubNode(name(in, symbol, symbols), symbol);
+            }
+            case LABELED: {
+                int symbol = in.getInt();
+                var label = name(in, symbol, symbols);
+                return new LabeledStatementNode(label, symbol, (StatementNode) read(in, symbols));
+            }
+            case RETURN:
+                return new ReturnNode();
+            case END:
+                return new EndNode();
+        }
+        throw new IOException("Unknown node tag " + tag);
+    }
+
+    /** Reads a math operation, whose tag has been read, from an explicit stack, as it was written from one
+     * @return the operation with both its sides
+     */
+    private static Node operation(ByteBuffer in, SymbolTable symbols) throws IOException {
+        var ops = new ArrayList<Operation>(); // operations waiting for their sides
+        var lefts = new ArrayList<Node>(); // each one's left side, or null while it's being read
+        ops.add(Operation.values()[in.get()]);
+        lefts.add(null);
+        while (true) {
+            if (in.get(in.position()) == MATHOP) {
+                in.get();
+                ops.add(Operation.values()[in.get()]);
+                lefts.add(null);
+                continue;
+            }
+            var done = read(in, symbols);
+            while (true) {
+                int top = ops.size() - 1;
+                if (lefts.get(top) == null) {
+                    lefts.set(top, done);
+                    break;
+                }
+                done = new MathOpNode(lefts.remove(top), ops.remove(top), done);
+                if (ops.isEmpty())
+                    return done;
+            }
+        }
+    }
+
+    private static void list(DataOutputStream out, List<? extends Node> nodes) throws IOException {
+        out.writeInt(nodes.size());
+        for (Node n : nodes)
+            write(out, n);
+    }
+
+    /** Names are written as their symbol id, or spelled out if they don't have one */
+    private static void name(DataOutputStream out, String name, int symbol) throws IOException {
+        out.writeInt(symbol);
+        if (symbol < 0)
+            string(out, name);
+    }
+
+    private static String name(ByteBuffer in, int symbol, SymbolTable symbols) {
+        return symbol < 0 ? string(in) : symbols.getName(symbol);
+    }
+
+    private static void string(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = in.getInt();
+        var out = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return out;
+    }
+}
@@ -1,15 +1,31 @@
 package basic;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Collections;
 public class StatementsNode extends Node {
     
     // feels kinda weird doing this with a list, but seems sufficient *for now*
-    private LinkedList<StatementNode> program;
+    private ArrayList<StatementNode> program; // indexed, so edits can be spliced in by position
+    private final SymbolTable symbols;
 
     public StatementsNode() {
-        program = new LinkedList<StatementNode>();
+        this(new SymbolTable());
+    }
+
+    /**
+     * @param symbols the table the program's variable and label names were interned in
+     */
+    public StatementsNode(SymbolTable symbols) {
+        program = new ArrayList<StatementNode>();
+        this.symbols = symbols;
+    }
+
+    /**
+     * @return the table the symbol ids of names in this program refer to
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
     }
 
     public void add(StatementNode next) {
@@ -0,0 +1,105 @@
+package basic;
+
+import java.util.Arrays;
+
+/**
+ * Per-program table of identifier and label names. Each distinct name is stored
+ * once and given a dense id, counting up from 0 in the order names are first seen,
+ * so later stages can index arrays by symbol instead of hashing strings
+ */
+public class SymbolTable {
+    private String[] names;
+    private int[] hashes;
+    private int[] slots; // open addressed, id + 1 of the name hashed there or 0 if free
+    private int size;
+
+    public SymbolTable() {
+        names = new String[16];
+        hashes = new int[16];
+        slots = new int[32];
+    }
+
+    /**
+     * @param name identifier or label name
+     * @return the id of name, adding it if it is new
+     */
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int slot = hash & (slots.length - 1);
+        for (; slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && names[id].equals(name))
+                return id;
+        }
+        return add(slot, name, hash);
+    }
+
+    /** Interns a name straight from the source, only building a String the first time it's seen
+     * @param source where the name was lexed from
+     * @param start source offset of the first character of the name
+     * @param end source offset one past the last character of the name
+     * @param hash String.hashCode() of the name, without any carriage returns
+     * @return the id of the name, adding it if it is new
+     */
+    int intern(CodeHandler source, int start, int end, int hash) {
+        int slot = hash & (slots.length - 1);
+        for (; slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && source.matches(start, end, names[id]))
+                return id;
+        }
+        return add(slot, Token.materialize(Token.TokenType.WORD, source.substring(start, end)), hash);
+    }
+
+    /**
+     * @param name identifier or label name
+     * @return the id of name, or -1 if it has never been interned
+     */
+    public int find(String name) {
+        int hash = name.hashCode();
+        for (int slot = hash & (slots.length - 1); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && names[id].equals(name))
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * @param id symbol id given by intern
+     * @return the name the id stands for
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return number of distinct names, ids run from 0 to size() - 1
+     */
+    public int size() {
+        return size;
+    }
+
+    private int add(int slot, String name, int hash) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length)
+            rehash();
+        return size - 1;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & (slots.length - 1);
+            while (slots[slot] != 0)
+                slot = (slot + 1) & (slots.length - 1);
+            slots[slot] = id + 1;
+        }
+    }
+}
@@ -59,9 +59,15 @@ public class Token {
     };
 
     private final TokenType type;
-    private final String value;
+    private String value;
     private final int line;
     private final int pos;
+    private final int symbol; // id of a WORD or LABEL name in its SymbolTable, -1 if not known
+
+    // where the value lives in the source, so it can be built only when asked for
+    private CodeHandler source;
+    private int start;
+    private int end;
 
     /* Valueless constructor. Intended specifically for ENDOFLINE tokens currently
      * @param type the token type
@@ -79,10 +85,37 @@ public class Token {
      * @param value the in-file textual value of the token as a string
      */
     public Token(TokenType type, int line, int pos, String value) {
+        this(type, line, pos, value, -1);
+    }
+
+    /* Constructor for a WORD/LABEL whose name is in a SymbolTable
+     * @param type the token type
+     * @param line the file line at which the token was found
+     * @param pos the in line position of the first character of the token
+     * @param value the in-file textual value of the token as a string
+     * @param symbol id of value in the SymbolTable it was interned in, -1 if none
+     */
+    public Token(TokenType type, int line, int pos, String value, int symbol) {
         this.line = line;
         this.pos = pos;
         this.type = type;
         this.value = value;
+        this.symbol = symbol;
+    }
+
+    /* Source-backed constructor. The value is only read out of the source when requested
+     * @param type the token type
+     * @param line the file line at which the token was found
+     * @param pos the in line position of the first character of the token
+     * @param source the CodeHandler the token was read from
+     * @param start source offset of the first character of the value
+     * @param end source offset one past the last character of the value
+     */
+    public Token(TokenType type, int line, int pos, CodeHandler source, int start, int end) {
+        this(type, line, pos, null);
+        this.source = source;
+        this.start = start;
+        this.end = end;
     }
 
     /* toString method
@@ -92,7 +125,7 @@ public class Token {
      */
     public String toString() {
         if (type == TokenType.ENDOFLINE) return type.toString() + "\n";
-        if (value == null) return type.toString() + " ";
+        if (getValue() == null) return type.toString() + " ";
         return type + "(" + value + ")" + " ";
     }
 
@@ -117,10 +150,34 @@ public class Token {
         return pos;
     }
 
+    /* 
+     * @return the symbol id of this token's name, -1 if not a WORD/LABEL from a TokenBuffer
+     */
+    public int getSymbol() {
+        return symbol;
+    }
+
     /* 
      * @return the value of this token. null if no value
      */
     public String getValue() {
+        if (value == null && source != null) {
+            value = materialize(type, source.substring(start, end));
+            source = null;
+        }
         return value;
     }
+
+    /** Applies the lexer rules that make a value differ from its source text
+     * @param type the token type
+     * @param raw the source text of the value
+     * @return raw without carriage returns, and with \" unescaped for literals
+     */
+    static String materialize(TokenType type, String raw) {
+        if (raw.indexOf('\r') >= 0)
+            raw = raw.replace("\r", "");
+        if (type == TokenType.STRINGLITERAL && raw.indexOf('\\') >= 0)
+            raw = raw.replace("\\\"", "\"");
+        return raw;
+    }
 }
@@ -0,0 +1,290 @@
+package basic;
+
+import basic.Token.TokenType;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compact storage for a lexed token stream. Tokens live in parallel int arrays
+ * (type, line, pos, source offset and length) instead of one object each, and
+ * values are only read out of the source when asked for.
+ * WORD and LABEL tokens also carry the id of their name in the buffer's SymbolTable
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CodeHandler source;
+    private final SymbolTable table;
+    private int[] types;
+    private int[] lines;
+    private int[] positions;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] symbols; // -1 unless WORD or LABEL
+    private String[] values; // only for tokens that weren't lexed from source
+    private int size;
+
+    /** Creates an empty buffer for tokens lexed from source
+     * @param source the CodeHandler offsets refer to, may be null if every token has its own value
+     */
+    public TokenBuffer(CodeHandler source) {
+        this(source, new SymbolTable());
+    }
+
+    /** Creates an empty buffer that shares another buffer's symbols, so ids stay the same between them
+     * @param source the CodeHandler offsets refer to, may be null if every token has its own value
+     * @param table the table names are interned into
+     */
+    public TokenBuffer(CodeHandler source, SymbolTable table) {
+        this.source = source;
+        this.table = table;
+        int capacity = 64;
+        types = new int[capacity];
+        lines = new int[capacity];
+        positions = new int[capacity];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        symbols = new int[capacity];
+    }
+
+    /** Copies an already built list of tokens, such as the ones tests create by hand
+     * @param tokens the tokens in order
+     * @return a buffer holding the same tokens
+     */
+    public static TokenBuffer of(List<Token> tokens) {
+        var out = new TokenBuffer(null);
+        for (Token t : tokens)
+            out.add(t);
+        return out;
+    }
+
+    /** Appends a token whose value, if any, is the source text between the offsets
+     * @param type the token type
+     * @param line the file line at which the token was found
+     * @param pos the in line position of the first character of the token
+     * @param start source offset of the first character of the value
+     * @param end source offset one past the last character of the value
+     */
+    public void add(TokenType type, int line, int pos, int start, int end) {
+        add(type, line, pos, start, end, -1);
+    }
+
+    /** Appends a WORD or LABEL token whose name has already been interned
+     * @param type the token type
+     * @param line the file line at which the token was found
+     * @param pos the in line position of the first character of the token
+     * @param start source offset of the first character of the value
+     * @param end source offset one past the last character of the value
+     * @param symbol id of the name in getSymbols()
+     */
+    public void add(TokenType type, int line, int pos, int start, int end, int symbol) {
+        if (size == types.length)
+            grow();
+        types[size] = type.ordinal();
+        lines[size] = line;
+        positions[size] = pos;
+        offsets[size] = start;
+        lengths[size] = end - start;
+        symbols[size] = symbol;
+        size++;
+    }
+
+    /** Appends a token that carries its own value
+     * @param t the token
+     */
+    public void add(Token t) {
+        boolean named = t.getType() == TokenType.WORD || t.getType() == TokenType.LABEL;
+        add(t.getType(), t.getLine(), t.getPos(), 0, 0, named ? table.intern(t.getValue()) : -1);
+        if (t.getValue() != null && !named) {
+            if (values == null)
+                values = new String[types.length];
+            values[size - 1] = t.getValue();
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.max(types.length * 2, 16);
+        types = Arrays.copyOf(types, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        symbols = Arrays.copyOf(symbols, capacity);
+        if (values != null)
+            values = Arrays.copyOf(values, capacity);
+    }
+
+    /** Drops unused capacity once no more tokens will be added
+     * @modifies every array is shrunk to size
+     */
+    public void trim() {
+        types = Arrays.copyOf(types, size);
+        lines = Arrays.copyOf(lines, size);
+        positions = Arrays.copyOf(positions, size);
+        offsets = Arrays.copyOf(offsets, size);
+        lengths = Arrays.copyOf(lengths, size);
+        symbols = Arrays.copyOf(symbols, size);
+        if (values != null)
+            values = Arrays.copyOf(values, size);
+    }
+
+    /** Appends every token of another buffer over the same source
+     * @param other the tokens to add
+     * @param lineBase added to the line of each appended token
+     */
+    public void append(TokenBuffer other, int lineBase) {
+        append(other, 0, other.size, lineBase, 0);
+    }
+
+    /** Appends a range of another buffer's tokens, moving them to where they now are in the source
+     * @param other the buffer to copy from
+     * @param from index of the first token to add
+     * @param to index one past the last token to add
+     * @param lineBase added to the line of each appended token
+     * @param offsetBase added to the source offset of each appended token
+     * @modifies names from a buffer with a different SymbolTable are interned into this one
+     */
+    public void append(TokenBuffer other, int from, int to, int lineBase, int offsetBase) {
+        int count = to - from;
+        while (size + count > types.length)
+            grow();
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.positions, from, positions, size, count);
+        System.arraycopy(other.lengths, from, lengths, size, count);
+        for (int i = 0; i < count; i++) {
+            lines[size + i] = other.lines[from + i] + lineBase;
+            offsets[size + i] = other.offsets[from + i] + offsetBase;
+        }
+        if (other.table == table)
+            System.arraycopy(other.symbols, from, symbols, size, count);
+        else {
+            int[] ids = new int[other.table.size()]; // other's ids in this table, +1 once known
+            for (int i = 0; i < count; i++) {
+                int symbol = other.symbols[from + i];
+                if (symbol >= 0 && ids[symbol] == 0)
+                    ids[symbol] = table.intern(other.table.getName(symbol)) + 1;
+                symbols[size + i] = symbol < 0 ? -1 : ids[symbol] - 1;
+            }
+        }
+        if (other.values != null) {
+            if (values == null)
+                values = new String[types.length];
+            System.arraycopy(other.values, from, values, size, count);
+        }
+        size += count;
+    }
+
+    /** Forgets the first count tokens, for streaming where they have already been used
+     * @param count number of tokens to drop from the front
+     * @modifies every later token moves down by count
+     */
+    public void discard(int count) {
+        int keep = size - count;
+        System.arraycopy(types, count, types, 0, keep);
+        System.arraycopy(lines, count, lines, 0, keep);
+        System.arraycopy(positions, count, positions, 0, keep);
+        System.arraycopy(offsets, count, offsets, 0, keep);
+        System.arraycopy(lengths, count, lengths, 0, keep);
+        System.arraycopy(symbols, count, symbols, 0, keep);
+        if (values != null) {
+            System.arraycopy(values, count, values, 0, keep);
+            Arrays.fill(values, keep, size, null);
+        }
+        size = keep;
+    }
+
+    /**
+     * @return the CodeHandler token offsets refer to, null if every token has its own value
+     */
+    public CodeHandler getSource() {
+        return source;
+    }
+
+    /**
+     * @return the table the names of WORD and LABEL tokens are interned in
+     */
+    public SymbolTable getSymbols() {
+        return table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType getType(int i) {
+        return TYPES[types[i]];
+    }
+
+    public int getLine(int i) {
+        return lines[i];
+    }
+
+    public int getPos(int i) {
+        return positions[i];
+    }
+
+    /**
+     * @return source offset of the start of token i's value
+     */
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * @return source length of token i's value
+     */
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * @return symbol id of token i's name, -1 if it isn't a WORD or LABEL
+     */
+    public int getSymbol(int i) {
+        return symbols[i];
+    }
+
+    /**
+     * @return the value of token i, read from source on each call unless it is a name. null if no value
+     */
+    public String getValue(int i) {
+        if (symbols[i] >= 0)
+            return table.getName(symbols[i]);
+        if (values != null && values[i] != null)
+            return values[i];
+        if (source == null || !hasValue(getType(i)))
+            return null;
+        return Token.materialize(getType(i), source.substring(offsets[i], offsets[i] + lengths[i]));
+    }
+
+    /**
+     * @return token i as a standalone Token, with its value already read from source
+     */
+    public Token get(int i) {
+        return new Token(getType(i), lines[i], positions[i], getValue(i), symbols[i]);
+    }
+
+    /**
+     * @return every token as a standalone Token, the way Lexer.lex() hands them out.
+     * Values are still only read from source when asked for
+     */
+    public LinkedList<Token> toList() {
+        var out = new LinkedList<Token>();
+        for (int i = 0; i < size; i++) {
+            if (source == null || (values != null && values[i] != null) || symbols[i] >= 0 || !hasValue(getType(i)))
+                out.add(get(i));
+            else
+                out.add(new Token(getType(i), lines[i], positions[i], source, offsets[i], offsets[i] + lengths[i]));
+        }
+        return out;
+    }
+
+    /**
+     * @return true for the token types whose value is their source text
+     */
+    private static boolean hasValue(TokenType type) {
+        return type == TokenType.WORD || type == TokenType.NUMBER
+            || type == TokenType.LABEL || type == TokenType.STRINGLITERAL;
+    }
+}
@@ -2,40 +2,172 @@ package basic;
 
 import basic.Token.TokenType;
 import java.util.LinkedList;
-import java.util.Optional;
 
 /**
- * Handles reading for a list of lexed tokens
+ * Handles reading for a buffer of lexed tokens. Tokens are consumed by moving
+ * a cursor forward, the buffer itself is never modified, and lookahead is just an
+ * index into its arrays. Matching hands back a boolean or an index rather than a Token.
+ * When reading from a Lexer, lines are lexed only as they are needed and
+ * used tokens are dropped, so only the current statement is ever held
  */
 public class TokenHandler {
-    private LinkedList<Token> stream;
+    private TokenBuffer stream;
+    private int index;
+    private Lexer lexer; // null unless tokens are pulled from the lexer
+    private int end = -1; // index of the token to stop before, -1 to read to the end of the stream
 
     /** Creates TokenHandler
-     * @param input list
+     * @param input buffer
      * @throws Exception on invalid stream 
      */
-    public TokenHandler(LinkedList<Token> stream) throws Exception {
+    public TokenHandler(TokenBuffer stream) throws Exception {
         if (stream == null) throw new Exception();
         this.stream = stream;
+        this.index = 0;
+    }
+
+    /** Creates TokenHandler that only reads part of a buffer
+     * @param stream buffer
+     * @param start index of the first token to read
+     * @param end index of the token to stop before
+     * @throws Exception on invalid stream
+     */
+    TokenHandler(TokenBuffer stream, int start, int end) throws Exception {
+        this(stream);
+        this.index = start;
+        this.end = end;
+    }
+
+    /** Creates TokenHandler
+     * @param input list
+     * @throws Exception on invalid stream 
+     */
+    public TokenHandler(LinkedList<Token> stream) throws Exception {
+        this(stream == null ? null : TokenBuffer.of(stream));
+    }
+
+    /** Creates TokenHandler that pulls tokens from a lexer as they are needed
+     * @param lexer the lexer, which should not have been used yet
+     * @throws Exception on invalid lexer
+     */
+    public TokenHandler(Lexer lexer) throws Exception {
+        this(lexer == null ? null : lexer.getTokens());
+        this.lexer = lexer;
+    }
+
+    /**
+     * @param j index relative to the cursor
+     * @return the token j after the cursor, or null past the end of the tokens
+     */
+    public Token peek(int j) throws Exception {
+        if (!fill(j))
+            return null;
+        return stream.get(index + j);
+    }
+
+    /**
+     * @param j index relative to the cursor
+     * @return type of the token j after the cursor, or null past the end of the tokens
+     */
+    public TokenType peekType(int j) throws Exception {
+        if (!fill(j))
+            return null;
+        return stream.getType(index + j);
+    }
+
+    /**
+     * @return the table WORD and LABEL symbol ids refer to
+     */
+    public SymbolTable getSymbols() {
+        return stream.getSymbols();
+    }
+
+    public boolean moreTokens() throws Exception {
+        return fill(0);
+    }
+
+    /**
+     * Moves the cursor past the head if it is of type t
+     * @return true if the head was consumed
+     */
+    boolean match(TokenType t) throws Exception {
+        if (moreTokens() && stream.getType(index) == t) {
+            index++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the cursor past the head, for when its type has already been looked at with peekType
+     */
+    void skip() throws Exception {
+        if (moreTokens())
+            index++;
+    }
+
+    /**
+     * Moves the cursor past the head if it is of type t
+     * @return where the consumed token is for getValue/getSymbol/getLine/getPos, or -1 if the head
+     * isn't of type t. Only good until the cursor is next moved, since streamed tokens may be dropped then
+     */
+    int matchIndex(TokenType t) throws Exception {
+        if (moreTokens() && stream.getType(index) == t)
+            return index++;
+        return -1;
     }
 
-    public Optional<Token> peek(int j) {
-        if (j >= stream.size())
-            return Optional.empty();
-        return Optional.of(stream.get(j));
+    /**
+     * @param i index given by matchIndex
+     * @return the value of that token, null if it has none
+     */
+    String getValue(int i) {
+        return stream.getValue(i);
     }
 
-    public boolean moreTokens() {
-        return (stream.size() > 0);
+    /**
+     * @param i index given by matchIndex
+     * @return symbol id of that token's name, -1 if it isn't a WORD or LABEL
+     */
+    int getSymbol(int i) {
+        return stream.getSymbol(i);
     }
 
     /**
-     * If the token type of the head is the same as what was passed in, removes that token from the list and returns it. 
-     * In all other cases, returns Optional.Empty()
+     * @param i index given by matchIndex
+     * @return line of that token
+     */
+    int getLine(int i) {
+        return stream.getLine(i);
+    }
+
+    /**
+     * @param i index given by matchIndex
+     * @return in-line position of that token
+     */
+    int getPos(int i) {
+        return stream.getPos(i);
+    }
+
+    /** Makes sure the token j after the cursor is in the buffer, lexing more if there's a lexer
+     * @param j index relative to the cursor
+     * @return true if that token exists
      */
-    Optional<Token> matchAndRemove(TokenType t) {
-        if (moreTokens() && stream.peek().getType() == t)
-            return Optional.of(stream.pop());
-        return Optional.empty();
+    private boolean fill(int j) throws Exception {
+        if (end >= 0)
+            return index + j < end;
+        while (index + j >= stream.size()) {
+            if (lexer == null)
+                return false;
+            if (index > 0) { // nothing before the cursor is looked at again
+                int offset = index < stream.size() ? stream.getOffset(index) : Integer.MAX_VALUE;
+                stream.discard(index);
+                index = 0;
+                lexer.release(offset);
+            }
+            if (!lexer.lexLine())
+                return false;
+        }
+        return true;
     }
 }
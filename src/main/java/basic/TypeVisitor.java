@@ -0,0 +1,121 @@
+package basic;
+
+import basic.FunctionNode.Invocation;
+import basic.Node.Type;
+import java.util.ArrayList;
+
+/**
+ * Gives every expression in a statement its type, so the Interpreter can evaluate it once with the
+ * evaluator for that type instead of trying it as an int and then again as a float.
+ * Types are static: a variable ending in % is a float, one ending in $ is a string and any other is an int.
+ * A math operation is an int if both sides are ints, a float if both are numbers, and a string otherwise,
+ * which neither number evaluator takes
+ */
+public class TypeVisitor implements NodeVisitor {
+    public void visit(Node n) throws Exception {
+        if (n instanceof LabeledStatementNode)
+            n = ((LabeledStatementNode) n).getStatement();
+        if (n instanceof AssignmentNode) {
+            type(((AssignmentNode) n).getLeft());
+            type(((AssignmentNode) n).getRight());
+        }
+        if (n instanceof PrintNode)
+            for (Node x : ((PrintNode) n).getPrints())
+                type(x);
+        if (n instanceof InputNode) {
+            type(((InputNode) n).getInput());
+            for (Node x : ((InputNode) n).getParams())
+                type(x);
+        }
+        if (n instanceof ReadNode)
+            for (Node x : ((ReadNode) n).getReads())
+                type(x);
+        if (n instanceof DataNode)
+            for (Node x : ((DataNode) n).getData())
+                type(x);
+        if (n instanceof IfNode)
+            visit(((IfNode) n).getCondition());
+        if (n instanceof WhileNode)
+            visit(((WhileNode) n).getCondition());
+        if (n instanceof ForNode)
+            type(((ForNode) n).getVar());
+    }
+
+    public void visit(BooleanNode n) {
+        type(n.getLeft());
+        type(n.getRight());
+    }
+
+    /** Types an expression, along with everything in it. Nodes that already have a type keep it.
+     * Math operations nest as deeply as generated code likes, so they are walked with an explicit stack
+     * the way Parser.nested() builds them, rather than by recursion
+     * @param n expression
+     * @return its type, STRING for anything that isn't a number
+     */
+    public static Type type(Node n) {
+        var pending = new ArrayList<MathOpNode>(); // operations waiting for their sides' types
+        var lefts = new ArrayList<Type>(); // each one's left type, or null while its left side is being typed
+        Node at = n;
+        while (true) {
+            while (at instanceof MathOpNode && at.getType() == null) {
+                pending.add((MathOpNode) at);
+                lefts.add(null);
+                at = ((MathOpNode) at).getLeft();
+            }
+            Type done = at.getType() != null ? at.getType() : operand(at);
+            while (true) {
+                if (pending.isEmpty())
+                    return done;
+                int top = pending.size() - 1;
+                if (lefts.get(top) == null) {
+                    lefts.set(top, done);
+                    at = pending.get(top).getRight();
+                    break;
+                }
+                var left = lefts.remove(top);
+                Type out = Type.STRING;
+                if (left == Type.INT && done == Type.INT)
+                    out = Type.INT;
+                else if (left != Type.STRING && done != Type.STRING)
+                    out = Type.FLOAT;
+                pending.remove(top).setType(out);
+                done = out;
+            }
+        }
+    }
+
+    /** Types anything but a math operation, along with a function's arguments
+     * @param n expression
+     * @return its type
+     */
+    private static Type operand(Node n) {
+        Type out = Type.STRING;
+        if (n instanceof IntegerNode)
+            out = Type.INT;
+        if (n instanceof FloatNode)
+            out = Type.FLOAT;
+        if (n instanceof VariableNode) {
+            var name = ((VariableNode) n).getValue();
+            if (name.endsWith("%"))
+                out = Type.FLOAT;
+            else if (!name.endsWith("$"))
+                out = Type.INT;
+        }
+        if (n instanceof FunctionNode) {
+            var func = (FunctionNode) n;
+            for (Node x : func.getData())
+                type(x);
+            switch (func.getValue()) {
+                case Invocation.RANDOM:
+                case Invocation.VAL:
+                    out = Type.INT;
+                    break;
+                case Invocation.VALF:
+                    out = Type.FLOAT;
+                    break;
+            }
+        }
+        n.setType(out);
+        return out;
+    }
+}
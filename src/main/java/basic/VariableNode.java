@@ -2,9 +2,30 @@ package basic;
 
 public class VariableNode extends Node {
     private final String value;
+    private int symbol;
 
     public VariableNode(String in) {
+        this(in, -1);
+    }
+
+    /**
+     * @param in variable name
+     * @param symbol id of the name in the program's SymbolTable, -1 if not known
+     */
+    public VariableNode(String in, int symbol) {
         value = in;
+        this.symbol = symbol;
+    }
+
+    public int getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * @param symbol id the interpreter gave a node built without a SymbolTable
+     */
+    void setSymbol(int symbol) {
+        this.symbol = symbol;
     }
 
     public String getValue() {
@@ -4,21 +4,47 @@ public class WhileNode extends StatementNode {
     
     private final BooleanNode condition;
     private final String identifier;
-
+    private final int symbol;
+    private LabeledStatementNode end;
 
     public String getValue() {
         return identifier;
     }
 
     public WhileNode(BooleanNode condition, String identifier) {
+        this(condition, identifier, -1);
+    }
+
+    /**
+     * @param condition the loop condition
+     * @param identifier end label name
+     * @param symbol id of the label in the program's SymbolTable, -1 if not known
+     */
+    public WhileNode(BooleanNode condition, String identifier, int symbol) {
         this.condition = condition;
         this.identifier = identifier;
+        this.symbol = symbol;
+    }
+
+    public int getSymbol() {
+        return symbol;
     }
 
     public BooleanNode getCondition() {
         return condition;
     }
 
+    /**
+     * @return the statement with the end label, which comes after the loop, set when the program is prepared
+     */
+    public LabeledStatementNode getEnd() {
+        return end;
+    }
+
+    public void setEnd(LabeledStatementNode end) {
+        this.end = end;
+    }
+
     public String toString() {
         return "WHILE " + condition + " " + identifier;
     }
@@ -0,0 +1,216 @@
+package basic;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+
+/**
+ * Throughput/allocation benchmark for the front-end, run by hand from the test directory:
+ * java basic.BasicBenchmark [lines...]
+ * Each stage (lex, parallel lex, parse, parallel parse, prepare) is timed separately on the sample programs
+ * and on generated programs of increasing size, so regressions can be pinned to a stage.
+ * The expression evaluators are measured last, for what an evaluation allocates once warmed up
+ */
+public class BasicBenchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final String[] SAMPLES = {"example.txt", "fizzbuzz.txt", "collatz.txt"};
+    private static final long WORK = 1 << 24; // source bytes each stage is run over, split into runs
+    private static long sink; // evaluations are added to this so they can't be optimized away
+
+    /** One evaluation, with its value as an int so the harness doesn't box it */
+    private interface Evaluation {
+        int run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10_000, 100_000, 1_000_000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        System.out.format("%-7s %-14s %10s %9s %11s %11s %14s%n", "stage", "program", "size", "tokens", "best", "rate", "alloc");
+        for (String sample : SAMPLES)
+            if (Files.exists(Path.of(sample)))
+                stages(sample, Path.of(sample));
+        for (int lines : sizes) {
+            Path file = generate(lines);
+            stages(lines + " lines", file);
+            System.out.println(retained(file));
+            Files.delete(file);
+        }
+        evaluation();
+    }
+
+    /** Evaluates an int and a float expression over and over with the boxed and the unboxed evaluators.
+     * The values are outside the Integer cache, so boxing shows up as allocation
+     */
+    private static void evaluation() throws Exception {
+        var program = new Program(new Parser(IncrementalLexer.lex(
+            "x = 100000\nt% = 0.5\ny = (x * 3 - x / 2) + 1000\nu% = t% + x * 1.5\n")).parse());
+        var i = new Interpreter(program, true);
+        i.interpret();
+        var statements = program.getAST().getAST();
+        Node ints = ((AssignmentNode) statements.get(2)).getRight();
+        Node floats = ((AssignmentNode) statements.get(3)).getRight();
+        System.out.println(evaluations("evaluate()", () -> i.evaluate(ints).get()));
+        System.out.println(evaluations("evalInt()", () -> i.evalInt(ints)));
+        System.out.println(evaluations("evaluatef()", () -> i.evaluatef(floats).get().intValue()));
+        System.out.println(evaluations("evalFloat()", () -> (int) i.evalFloat(floats)));
+    }
+
+    /** Runs an evaluation many times after a warmup
+     * @param name what to call the evaluator in the output
+     * @param work one evaluation
+     * @return time and allocation per evaluation
+     */
+    private static String evaluations(String name, Evaluation work) throws Exception {
+        final int runs = 1_000_000;
+        for (int i = 0; i < runs; i++)
+            sink += work.run();
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            sink += work.run();
+        long time = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - bytes;
+        return String.format("%-7s %-14s %8.1f ns/eval %6.1f B/eval", "eval", name, (double) time / runs, (double) allocated / runs);
+    }
+
+    /** Prints a line per front-end stage for one program
+     * @param name what to call the program in the output
+     * @param file program to run the stages on
+     */
+    private static void stages(String name, Path file) throws Exception {
+        String path = file.toString();
+        int runs = (int) Math.max(3, Math.min(1000, WORK / Math.max(1, Files.size(file))));
+        System.out.println(measure("lex", name, file, runs, () -> new Lexer(path).lexBuffer().size()));
+        System.out.println(measure("lex||", name, file, runs, () -> new Lexer(path).lexParallel().size()));
+        TokenBuffer tokens = new Lexer(path).lexBuffer();
+        try {
+            new Parser(tokens).parse();
+        } catch (Exception x) { // some samples are only meant for the lexer
+            System.out.format("%-7s %-14s doesn't parse%n", "parse", name);
+            return;
+        }
+        System.out.println(measure("parse", name, file, runs, () -> {
+            new Parser(tokens).parse();
+            return tokens.size();
+        }));
+        System.out.println(measure("parse||", name, file, runs, () -> {
+            new Parser(tokens).parseParallel();
+            return tokens.size();
+        }));
+        var ast = new StatementsNode[1]; // parsed again before every run, since preparing types the nodes for good
+        System.out.println(measure("prepare", name, file, runs, () -> ast[0] = new Parser(tokens).parse(), () -> {
+            new Program(ast[0]);
+            return tokens.size();
+        }));
+    }
+
+    private static String measure(String stage, String name, Path file, int runs, Callable<Integer> work) throws Exception {
+        return measure(stage, name, file, runs, () -> null, work);
+    }
+
+    /** Runs a stage several times after a warmup
+     * @param stage name of the stage
+     * @param name name of the program
+     * @param file program the stage works on
+     * @param runs number of timed runs
+     * @param setup run before every run of the stage, left out of its time and allocation
+     * @param work the stage, returning how many tokens it went through
+     * @return summary of the best run, with allocation averaged over all of them
+     */
+    private static String measure(String stage, String name, Path file, int runs, Callable<?> setup,
+            Callable<Integer> work) throws Exception {
+        for (int i = 0; i < runs; i++) {
+            setup.call();
+            work.call();
+        }
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        int tokens = 0;
+        for (int i = 0; i < runs; i++) {
+            setup.call();
+            long bytes = allocated();
+            long start = System.nanoTime();
+            tokens = work.call();
+            best = Math.min(best, System.nanoTime() - start);
+            allocated += allocated() - bytes;
+        }
+        allocated /= runs;
+        double mb = Files.size(file) / (1024.0 * 1024.0);
+        return String.format("%-7s %-14s %7.2f MB %9d %8.3f ms %6.1f MB/s %6.1f B/token",
+                stage, name, mb, tokens, best / 1e6, mb / (best / 1e9), (double) allocated / tokens);
+    }
+
+    /**
+     * @return bytes allocated so far by every live thread, so the parallel stages count what
+     * their fork-join workers allocate too
+     */
+    private static long allocated() {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (bytes > 0) // -1 for a thread that ended since the ids were taken
+                total += bytes;
+        return total;
+    }
+
+    /** Compares heap retained by the token stream in both of its forms
+     * @param file program to lex
+     * @return retained bytes per token as a TokenBuffer and as a list of Tokens
+     */
+    private static String retained(Path file) throws Exception {
+        long before = used();
+        var buffer = new Lexer(file.toString()).lexBuffer();
+        long asBuffer = used() - before;
+        var list = buffer.toList();
+        for (Token t : list) // list users see values, so count them too
+            t.getValue();
+        long asList = used() - before - asBuffer;
+        return String.format("heap   %6.1f B/token as TokenBuffer, %6.1f B/token as LinkedList<Token>",
+                (double) asBuffer / buffer.size(), (double) asList / list.size());
+    }
+
+    private static long used() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Writes a synthetic program that exercises every kind of token
+     * @param lines number of lines to generate
+     * @return path of the generated temporary file
+     */
+    static Path generate(int lines) throws IOException {
+        var out = new StringBuilder(lines * 24);
+        for (int i = 0; i < lines; i++) {
+            switch (i % 6) {
+                case 0:
+                    out.append("label").append(i).append(": counter = counter + 1\n");
+                    break;
+                case 1:
+                    out.append("total% = total% + (counter * 2.5 - 7) / 3\n");
+                    break;
+                case 2:
+                    out.append("PRINT \"line \", counter, \" of the \\\"program\\\"\"\n");
+                    break;
+                case 3:
+                    out.append("IF counter <= ").append(i).append(" THEN label").append(i - 3).append('\n');
+                    break;
+                case 4:
+                    out.append("DATA 1, 22.75, \"some data\"\n");
+                    break;
+                default:
+                    out.append("name$ = \"value\"\n");
+            }
+        }
+        Path file = Files.createTempFile("bench", ".bas");
+        Files.writeString(file, out);
+        return file;
+    }
+}
@@ -1,13 +1,21 @@
 package basic;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class CodeHandlerTest{
 
     private static CodeHandler c = null;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testOpen() throws IOException {
         c = new CodeHandler("example.txt");
@@ -43,4 +51,77 @@ public class CodeHandlerTest{
         }
         Assert.assertEquals(74, i);
     }
+
+    @Test
+    public void testMappedMatchesHeap() throws IOException {
+        var heap = new CodeHandler("example.txt", false);
+        var mapped = new CodeHandler("example.txt", true);
+        Assert.assertEquals(heap.peekString(5), mapped.peekString(5));
+        while (!heap.isDone()) {
+            Assert.assertFalse(mapped.isDone());
+            Assert.assertEquals(heap.peek(0), mapped.peek(0));
+            Assert.assertEquals(heap.getChar(), mapped.getChar());
+        }
+        Assert.assertTrue(mapped.isDone());
+    }
+
+    @Test
+    public void testMappedUnicode() throws IOException {
+        var file = folder.newFile("unicode.txt").toPath();
+        Files.writeString(file, "a\u00e9\u20ac\ud83d\ude00b");
+        var mapped = new CodeHandler(file.toString(), true);
+        Assert.assertEquals('\u20ac', mapped.peek(2));
+        Assert.assertEquals('\ude00', mapped.peek(4));
+        Assert.assertEquals('a', mapped.getChar());
+        Assert.assertEquals('\u00e9', mapped.getChar());
+        Assert.assertEquals("\u20ac\ud83d\ude00b", mapped.remainder());
+        mapped.swallow();
+        Assert.assertEquals('\ud83d', mapped.getChar());
+        Assert.assertEquals("\ude00b", mapped.remainder());
+        Assert.assertEquals('\ude00', mapped.getChar());
+        Assert.assertEquals('b', mapped.getChar());
+        Assert.assertTrue(mapped.isDone());
+    }
+
+    @Test
+    public void testAsciiMatchesText() throws IOException {
+        var file = new CodeHandler("fizzbuzz.txt", false);
+        var text = CodeHandler.ofText(Files.readString(Path.of("fizzbuzz.txt")));
+        Assert.assertEquals(text.peekString(8), file.peekString(8));
+        Assert.assertEquals(text.nextLine(0), file.nextLine(0));
+        while (!text.isDone()) {
+            Assert.assertFalse(file.isDone());
+            Assert.assertEquals(text.getChar(), file.getChar());
+        }
+        Assert.assertTrue(file.isDone());
+        Assert.assertEquals("", file.remainder());
+    }
+
+    @Test
+    public void testUnicodeDecodesAsUtf8() throws IOException {
+        var file = folder.newFile("utf8.txt").toPath();
+        Files.write(file, "a\u00e9\u20acb".getBytes(StandardCharsets.UTF_8));
+        var heap = new CodeHandler(file.toString(), false);
+        Assert.assertEquals('a', heap.getChar());
+        Assert.assertEquals('\u00e9', heap.getChar());
+        Assert.assertEquals("\u20acb", heap.remainder());
+    }
+
+    @Test
+    public void testRuns() throws IOException {
+        var file = folder.newFile("runs.txt").toPath();
+        Files.writeString(file, "    \t  name_12345678$ \"a long literal body \\\" end\"\nx");
+        var c = new CodeHandler(file.toString(), false);
+        Assert.assertEquals(7, c.run(CodeHandler.SPACES));
+        c.skip(7);
+        Assert.assertEquals(15, c.run(CodeHandler.LITERAL)); // up to the "
+        Assert.assertEquals(13, c.run(CodeHandler.NAME)); // stops at $
+        c.skip(16);
+        Assert.assertEquals(20, c.run(CodeHandler.LITERAL)); // stops at the backslash
+        c.skip(22);
+        Assert.assertEquals(4, c.run(CodeHandler.LITERAL));
+        c.skip(6);
+        Assert.assertEquals(1, c.run(CodeHandler.NAME)); // runs stop at end of file
+        Assert.assertEquals(0, CodeHandler.ofText("    ").run(CodeHandler.SPACES)); // only ascii files are scanned
+    }
 }
@@ -1,12 +1,16 @@
 package basic;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.LinkedList;
 import basic.Token.TokenType;
 import basic.MathOpNode.Operation;
@@ -16,6 +20,9 @@ public class InterpreterTest {
     private static Parser p = null;
     private static Interpreter i = null;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private final PrintStream standardOut = System.out;
     private final ByteArrayOutputStream outputStreamCaptor = new ByteArrayOutputStream();
 
@@ -81,7 +88,7 @@ public class InterpreterTest {
         Assert.assertEquals(expected, output);
 
         i = new Interpreter(ast);
-        i.processData();
+        i.prepare();
         Assert.assertEquals(((IntegerNode) i.popData()).getValue(), 1);
         Assert.assertEquals(((FloatNode) i.popData()).getValue(), 13.5, .00001);
         Assert.assertEquals(((StringNode) i.popData()).getValue(), "lol this is a string");
@@ -122,7 +129,7 @@ public class InterpreterTest {
         Assert.assertEquals(expected, output);
 
         i = new Interpreter(ast);
-        i.processLabels();
+        i.prepare();
         Assert.assertEquals(i.getLabel("alabel").getLabel(), "alabel");
         Assert.assertTrue(i.getLabel("label2").getStatement() instanceof DataNode);
     }
@@ -143,7 +150,7 @@ public class InterpreterTest {
         Assert.assertEquals(expected + expected, output);
 
         i = new Interpreter(ast);
-        Assert.assertThrows(Exception.class, () -> i.processLabels());
+        Assert.assertThrows(Exception.class, () -> i.prepare());
     }
 
     @Test
@@ -324,7 +331,7 @@ public class InterpreterTest {
         Assert.assertEquals(expected, output);
 
         i = new Interpreter(ast, true);
-        i.processData();
+        i.prepare();
 
         var astarr = ast.getAST();
         i.interpret((ReadNode)astarr.get(1));
@@ -362,7 +369,7 @@ public class InterpreterTest {
         Assert.assertEquals(expected, output);
 
         i = new Interpreter(ast);
-        i.processOrder();
+        i.prepare();
         var astarr = ast.getAST();
         Assert.assertEquals(astarr.get(1), astarr.get(0).next());
     }
@@ -401,4 +408,287 @@ public class InterpreterTest {
         Assert.assertEquals("7", i.getIO().get(0));
         Assert.assertEquals(" steps.", i.getIO().get(1));
     }
+
+    /**
+     * Preparing happens once, so a program with labels and DATA can be run again
+     */
+    @Test
+    public void testInterpretTwice() throws Exception {
+        var ast = new Parser(IncrementalLexer.lex("DATA 7\nREAD y\nx = 0\nloop: x = x + 1\nIF x < 3 THEN loop\nPRINT x, y\n")).parse();
+        var i = new Interpreter(ast, true);
+        i.interpret();
+        i.interpret();
+        Assert.assertEquals("[3, 7, 3, 7]", i.getFullIO().toString());
+        Assert.assertSame(ast.getAST().get(4), ast.getAST().get(3).next());
+        Assert.assertSame(ast.getAST().get(4), ((LabeledStatementNode) ast.getAST().get(3)).getStatement().next());
+    }
+
+    /**
+     * Jumps go straight to their statements, and a FOR that doesn't run goes past its NEXT even when it's labeled
+     */
+    @Test
+    public void testResolvedJumps() throws Exception {
+        var program = new Program(new Parser(IncrementalLexer.lex(
+            "x = 5\nFOR i = 3 TO 1\nPRINT \"never\"\nskip: NEXT i\nIF x > 1 THEN done\nPRINT x\ndone: PRINT i\n")).parse());
+        var statements = program.getAST().getAST();
+        Assert.assertSame(((LabeledStatementNode) statements.get(3)).getStatement(), ((ForNode) statements.get(1)).getMatching());
+        Assert.assertSame(statements.get(6), ((IfNode) statements.get(4)).getJump());
+        var i = new Interpreter(program, true);
+        i.interpret();
+        Assert.assertEquals("[3]", i.getFullIO().toString());
+    }
+
+    @Test(expected = Exception.class)
+    public void testMissingLabel() throws Exception {
+        new Program(new Parser(IncrementalLexer.lex("x = 1\nIF x < 2 THEN nowhere\n")).parse());
+    }
+
+    /**
+     * An outer FOR that doesn't run goes past its own NEXT, not the inner loop's
+     */
+    @Test
+    public void testNestedForSkipped() throws Exception {
+        var program = new Program(new Parser(IncrementalLexer.lex(
+            "FOR i = 5 TO 1\nFOR j = 1 TO 2\nPRINT j\nNEXT j\nNEXT i\nPRINT \"done\"\n")).parse());
+        var statements = program.getAST().getAST();
+        Assert.assertSame(statements.get(4), ((ForNode) statements.get(0)).getMatching());
+        Assert.assertSame(statements.get(3), ((ForNode) statements.get(1)).getMatching());
+        var i = new Interpreter(program, true);
+        i.interpret();
+        Assert.assertEquals("[done]", i.getFullIO().toString());
+    }
+
+    @Test(expected = Exception.class)
+    public void testMismatchedNext() throws Exception {
+        new Program(new Parser(IncrementalLexer.lex("FOR i = 1 TO 2\nFOR j = 1 TO 2\nNEXT i\nNEXT j\n")).parse());
+    }
+
+    @Test(expected = Exception.class)
+    public void testWhileEndBefore() throws Exception {
+        new Program(new Parser(IncrementalLexer.lex("done: x = 1\nWHILE x < 3 done\nx = x + 1\n")).parse());
+    }
+
+    /**
+     * READ starts from the top of the DATA pool on every run, which the pool itself doesn't keep track of
+     */
+    @Test
+    public void testPreparedDataRunTwice() throws Exception {
+        var program = new Program(new Parser(IncrementalLexer.lex("DATA 1, 2\nREAD x, y\nPRINT x, y\n")).parse());
+        for (int run = 0; run < 2; run++) {
+            var i = new Interpreter(program, true);
+            i.interpret();
+            Assert.assertEquals("[1, 2]", i.getFullIO().toString());
+        }
+        Assert.assertEquals(2, program.getData().getData().size());
+        var flat = new FlatInterpreter(FlatProgram.of(program), true);
+        flat.interpret();
+        flat.interpret();
+        Assert.assertEquals("[1, 2, 1, 2]", flat.getFullIO().toString());
+    }
+
+    @Test
+    public void testCachedFizzBuzz() throws Exception {
+        var cache = new ProgramCache(folder.newFolder().toPath());
+        var parsed = new Interpreter(new Program(new Parser(new Lexer("fizzbuzz.txt").lexBuffer()).parse()), true);
+        parsed.interpret();
+        var stored = cache.load(Path.of("fizzbuzz.txt"));
+        var loaded = cache.load(Path.of("fizzbuzz.txt"));
+        Assert.assertNotSame(stored, loaded);
+        Assert.assertEquals(stored.getAST().toString(), loaded.getAST().toString());
+        Assert.assertEquals(1, cache.list().size());
+        var i = new Interpreter(loaded, true);
+        i.interpret();
+        Assert.assertEquals(parsed.getFullIO(), i.getFullIO());
+        Assert.assertEquals(1, cache.clear());
+    }
+
+    /**
+     * The DATA pool and labels come back from the cache, and editing the source misses it
+     */
+    @Test
+    public void testCachedData() throws Exception {
+        var dir = folder.newFolder().toPath();
+        var cache = new ProgramCache(dir);
+        var source = dir.resolve("data.bas");
+        Files.writeString(source, "DATA 1, 2.5\nstart: DATA \"three\"\nREAD a, b%, c$\nPRINT a, b%, c$\nEND\n");
+        cache.load(source);
+        var i = new Interpreter(cache.load(source), true);
+        i.interpret();
+        Assert.assertEquals("[1, 2.5, three]", i.getFullIO().toString());
+        Assert.assertTrue(i.getLabel("start") != null);
+
+        Files.writeString(source, "DATA 4\nREAD a\nPRINT a\n");
+        i = new Interpreter(cache.load(source), true);
+        i.interpret();
+        Assert.assertEquals("[4]", i.getFullIO().toString());
+        Assert.assertEquals(2, cache.list().size());
+        Assert.assertTrue(cache.evict(source));
+        Assert.assertEquals(1, cache.clear());
+    }
+
+    @Test
+    public void testFlatFizzBuzz() throws Exception {
+        var program = new Program(new Parser(new Lexer("fizzbuzz.txt").lexBuffer()).parse());
+        var flat = FlatProgram.of(program);
+        var tree = new Interpreter(program, true);
+        tree.interpret();
+        var i = new FlatInterpreter(flat, true);
+        i.interpret();
+        Assert.assertEquals(tree.getFullIO(), i.getFullIO());
+    }
+
+    /**
+     * Both interpreters evaluate by the same expression types, so they print the same things
+     */
+    @Test
+    public void testFlatMatchesTree() throws Exception {
+        String[] sources = {
+            "FOR x% = 1 TO 2\nPRINT x%\nNEXT x%\n",
+            "n = 7\nx% = n / 2 + 0.5\nPRINT n / 2, n / 2 * 1.0, x%, n * 2 - 1\n",
+            "a% = 1.5\nb = 3\nIF b / 2 < a% THEN small\nPRINT \"big\"\nsmall: PRINT a% * b, VAL(\"4\") + 1, VAL%(\"2.5\") + b\n",
+            "DATA 2, 0.25, \"s\"\nREAD i, f%, s$\nPRINT i * f%, i / 4, s$\n",
+        };
+        for (String source : sources) {
+            var program = new Program(new Parser(IncrementalLexer.lex(source)).parse());
+            var tree = new Interpreter(program, true);
+            tree.interpret();
+            var flat = new FlatInterpreter(FlatProgram.of(program), true);
+            flat.interpret();
+            Assert.assertEquals(tree.getFullIO(), flat.getFullIO());
+        }
+    }
+
+    /**
+     * A flat program runs the same mapped back from a file, jumps, loops, DATA and all
+     */
+    @Test
+    public void testFlatMapped() throws Exception {
+        var source = folder.newFile("flat.bas").toPath();
+        Files.writeString(source, "DATA 1, 2.5, \"three\"\nREAD a, b%, c$\nGOSUB show\n" +
+            "y = 0\nWHILE y < 3 done\ny = y + 1\ndone: PRINT y\n" +
+            "FOR j = 5 TO 1\nPRINT \"never\"\nNEXT j\nEND\nshow: PRINT a, b% * 2, c$\nRETURN\n");
+        var program = new Program(new Parser(new Lexer(source.toString()).lexBuffer()).parse());
+        var file = folder.newFile("flat.bin").toPath();
+        FlatProgram.of(program).write(file);
+        var tree = new Interpreter(program, true);
+        tree.interpret();
+        Assert.assertEquals("[1, 5.0, three, 3]", tree.getFullIO().toString());
+        var i = new FlatInterpreter(FlatProgram.map(file), true);
+        i.interpret();
+        Assert.assertEquals(tree.getFullIO(), i.getFullIO());
+    }
+
+    /**
+     * Parsed variables keep their symbol id as their slot, and ones built by hand are given one
+     */
+    @Test
+    public void testVariableSlots() throws Exception {
+        var ast = new Parser(IncrementalLexer.lex("n = 2\nn% = 1.5\nFOR n = 1 TO 3\nNEXT n\n")).parse();
+        var i = new Interpreter(ast, true);
+        i.interpret();
+        Assert.assertEquals("4", i.getVar("n"));
+        Assert.assertEquals("1.5", i.getVar("n%"));
+        Assert.assertEquals(null, i.getVar("m"));
+
+        var m = new VariableNode("m");
+        i.interpret(new AssignmentNode(m, new MathOpNode(new VariableNode("n"), MathOpNode.Operation.MULTIPLY, new IntegerNode(2))));
+        Assert.assertEquals(ast.getSymbols().find("m"), m.getSymbol());
+        Assert.assertEquals("8", i.getVar("m"));
+    }
+
+    /**
+     * Every expression is typed once when the program is prepared, and a mixed one is done in floats throughout
+     */
+    @Test
+    public void testExpressionTypes() throws Exception {
+        var program = new Program(new Parser(IncrementalLexer.lex(
+            "n = 7\nx% = n / 2 + 0.5\nPRINT n / 2, n / 2 * 1.0, x%\nIF n / 2 < 3.5 THEN done\ndone: PRINT \"s\"\n")).parse());
+        var statements = program.getAST().getAST();
+        var x = (AssignmentNode) statements.get(1);
+        Assert.assertEquals(Node.Type.FLOAT, x.getLeft().getType());
+        Assert.assertEquals(Node.Type.FLOAT, x.getRight().getType());
+        Assert.assertEquals(Node.Type.INT, ((MathOpNode) x.getRight()).getLeft().getType());
+        var prints = ((PrintNode) statements.get(2)).getPrints();
+        Assert.assertEquals(Node.Type.INT, prints.get(0).getType());
+        Assert.assertEquals(Node.Type.FLOAT, prints.get(1).getType());
+        Assert.assertEquals(Node.Type.INT, ((IfNode) statements.get(3)).getCondition().getLeft().getType());
+        var i = new Interpreter(program, true);
+        i.interpret();
+        Assert.assertEquals("[3, 3.5, 4.0, s]", i.getFullIO().toString());
+    }
+
+    @Test
+    public void testDeepExpressionTypes() throws Exception {
+        int depth = 10_000;
+        var text = new StringBuilder("x% = ");
+        for (int k = 0; k < depth; k++)
+            text.append("1+(");
+        text.append("0.5");
+        for (int k = 0; k < depth; k++)
+            text.append(")");
+        var program = new Program(new Parser(IncrementalLexer.lex(text.append("\n").toString())).parse());
+        var x = ((AssignmentNode) program.getAST().getAST().get(0)).getRight();
+        for (int k = 0; k < depth; k++) {
+            Assert.assertEquals(Node.Type.FLOAT, x.getType());
+            Assert.assertEquals(Node.Type.INT, ((MathOpNode) x).getLeft().getType());
+            x = ((MathOpNode) x).getRight();
+        }
+        Assert.assertEquals(Node.Type.FLOAT, x.getType());
+    }
+
+    /**
+     * Expressions nested far deeper than recursion could take, right and left, get printed,
+     * cached, flattened and run
+     */
+    @Test
+    public void testDeepExpression() throws Exception {
+        int depth = 100_000;
+        var text = new StringBuilder("x = ");
+        var printed = new StringBuilder("x=");
+        for (int k = 0; k < depth; k++) {
+            text.append("1+(");
+            printed.append("(1+");
+        }
+        text.append("1");
+        printed.append("1");
+        for (int k = 0; k < depth; k++) {
+            text.append(")");
+            printed.append(")");
+        }
+        text.append("\ny = x");
+        for (int k = 0; k < depth; k++)
+            text.append(" - 1");
+        var source = folder.newFile("deep.bas").toPath();
+        Files.writeString(source, text.append("\nPRINT x, y\n"));
+        var ast = new Parser(new Lexer(source.toString()).lexBuffer()).parse();
+        Assert.assertTrue(ast.toString().startsWith(printed.append("\ny=(((").toString()));
+
+        var cache = new ProgramCache(folder.newFolder().toPath());
+        cache.load(source);
+        var program = cache.load(source);
+        Assert.assertEquals(ast.toString(), program.getAST().toString());
+        var tree = new Interpreter(program, true);
+        tree.interpret();
+        Assert.assertEquals("[100001, 1]", tree.getFullIO().toString());
+        var flat = new FlatInterpreter(FlatProgram.of(program), true);
+        flat.interpret();
+        Assert.assertEquals(tree.getFullIO(), flat.getFullIO());
+    }
+
+    @Test
+    public void testTypedEvaluators() throws Exception {
+        i = new Interpreter(new StatementsNode());
+        var n = new IntegerNode(100000);
+        var f = new FloatNode((float) 0.5);
+        Assert.assertEquals(200000, i.evalInt(new MathOpNode(n, MathOpNode.Operation.ADD, n)));
+        Assert.assertEquals(100000.5, i.evalFloat(new MathOpNode(n, MathOpNode.Operation.ADD, f)), 0.00001);
+        Assert.assertEquals(50000.0, i.evalFloat(new MathOpNode(n, MathOpNode.Operation.DIVIDE, new IntegerNode(2))), 0.00001);
+        Assert.assertEquals("pasta", i.evalString(new StringNode("pasta")));
+    }
+
+    @Test(expected = Exception.class)
+    public void testEvalIntOfFloat() throws Exception {
+        i = new Interpreter(new StatementsNode());
+        i.evalInt(new MathOpNode(new IntegerNode(1), MathOpNode.Operation.ADD, new FloatNode((float) 0.5)));
+    }
 }
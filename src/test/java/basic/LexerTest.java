@@ -1,13 +1,23 @@
 package basic;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class LexerTest{
 
     private static Lexer l = null;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testOpen() throws IOException {
         l = new Lexer("example.txt");
@@ -63,4 +73,113 @@ public class LexerTest{
         l.lex();
     }
 
+    @Test
+    public void testKeywords() throws Exception {
+        var file = folder.newFile("keywords.txt").toPath();
+        Files.writeString(file, "PrInT Left$ VAL% val valx val$ to top num% Num$ returning\n");
+        l = new Lexer(file.toString());
+        String outputList = new String();
+        for (Token t: l.lex())
+            outputList = outputList + t;
+        Assert.assertEquals("PRINT LEFT VALF VAL WORD(valx) WORD(val$) TO WORD(top) NUMF NUM WORD(returning) ENDOFLINE\n", outputList);
+    }
+
+    @Test
+    public void testBuffer() throws Exception {
+        var tokens = new Lexer("fizzbuzz.txt").lexBuffer();
+        var list = new Lexer("fizzbuzz.txt").lex();
+        Assert.assertEquals(list.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            Assert.assertEquals(list.get(i).getType(), tokens.getType(i));
+            Assert.assertEquals(list.get(i).getLine(), tokens.getLine(i));
+            Assert.assertEquals(list.get(i).getPos(), tokens.getPos(i));
+            Assert.assertEquals(list.get(i).getValue(), tokens.getValue(i));
+        }
+        Assert.assertEquals(new Parser(list).parse().toString(), new Parser(tokens).parse().toString());
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        var list = new Lexer("example.txt").lex();
+        for (int chunkSize = 1; chunkSize < 64; chunkSize *= 2) { // small chunks so literals cross them
+            var tokens = new Lexer("example.txt").lexParallel(chunkSize);
+            Assert.assertEquals(list.toString(), tokens.toList().toString());
+            for (int i = 0; i < tokens.size(); i++) {
+                Assert.assertEquals(list.get(i).getLine(), tokens.getLine(i));
+                Assert.assertEquals(list.get(i).getPos(), tokens.getPos(i));
+            }
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void testParallelInvalidLiteral() throws Exception {
+        l = new Lexer("badliteral.txt");
+        l.lexParallel(4);
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        String text = Files.readString(Path.of("fizzbuzz.txt"));
+        TokenBuffer tokens = IncrementalLexer.lex(text);
+        String[][] edits = {{"0", "0", "x = 1\n"}, {"20", "3", ""}, {"7", "0", "\"two\nlines\" "}, {"8", "3", ""}};
+        for (String[] edit : edits) {
+            int offset = Integer.parseInt(edit[0]);
+            int removed = Integer.parseInt(edit[1]);
+            text = text.substring(0, offset) + edit[2] + text.substring(offset + removed);
+            var result = IncrementalLexer.relex(tokens, offset, removed, edit[2]);
+            tokens = result.getTokens();
+            TokenBuffer expected = IncrementalLexer.lex(text);
+            Assert.assertEquals(expected.toList().toString(), tokens.toList().toString());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.getLine(i), tokens.getLine(i));
+                Assert.assertEquals(expected.getPos(i), tokens.getPos(i));
+            }
+            Assert.assertTrue(result.getAdded() < tokens.size());
+        }
+    }
+
+    @Test
+    public void testSymbols() throws Exception {
+        TokenBuffer tokens = new Lexer("fizzbuzz.txt").lexBuffer();
+        SymbolTable symbols = tokens.getSymbols();
+        for (int i = 0; i < tokens.size(); i++) {
+            var type = tokens.getType(i);
+            if (type == Token.TokenType.WORD || type == Token.TokenType.LABEL)
+                Assert.assertEquals(symbols.find(tokens.getValue(i)), tokens.getSymbol(i));
+            else
+                Assert.assertEquals(-1, tokens.getSymbol(i));
+        }
+        int i = symbols.find("i");
+        Assert.assertTrue(i >= 0 && i < symbols.size());
+        Assert.assertSame(symbols.getName(i), tokens.getValue(1)); // FOR i, only one copy of the name
+        Assert.assertEquals(-1, symbols.find("for"));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        String[] files = {"example.txt", "fizzbuzz.txt", "collatz.txt"};
+        var expected = new String[files.length];
+        for (int i = 0; i < files.length; i++)
+            expected[i] = describe(new Lexer(files[i]).lexBuffer());
+
+        var results = new ArrayList<Future<String>>();
+        try (var threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 3000; i++) {
+                String file = files[i % files.length];
+                results.add(threads.submit(() -> describe(new Lexer(file).lexBuffer())));
+            }
+        }
+        for (int i = 0; i < results.size(); i++)
+            Assert.assertEquals(expected[i % files.length], results.get(i).get());
+    }
+
+    /**
+     * @return every token with its line and position, for comparing whole runs
+     */
+    private static String describe(TokenBuffer tokens) {
+        var out = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++)
+            out.append(tokens.getLine(i)).append(':').append(tokens.getPos(i)).append(' ').append(tokens.get(i));
+        return out.toString();
+    }
 }
@@ -2,7 +2,10 @@ package basic;
 
 import org.junit.Assert;
 import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.LinkedList;
 import basic.Token.TokenType;
 
@@ -523,4 +526,173 @@ public class ParserTest {
         var expected = "x=(2*RANDOM())\n";
         Assert.assertEquals(expected, output);
     }
+
+    @Test
+    public void testStreamingMatchesBuffered() throws Exception {
+        var buffered = new Parser(new Lexer("fizzbuzz.txt").lexBuffer()).parse();
+        try (var stream = new FileInputStream("fizzbuzz.txt")) {
+            var streamed = new Parser(new Lexer(stream)).parse();
+            Assert.assertEquals(buffered.toString(), streamed.toString());
+        }
+    }
+
+    @Test
+    public void testUnaryMinus() throws Exception {
+        var ast = new Parser(IncrementalLexer.lex("x = -y * 2 - -(3) + -4\n")).parse();
+        Assert.assertEquals("x=((((0-y)*2)-(0-3))+-4)\n", ast.toString());
+    }
+
+    /**
+     * Nesting far past what recursion could take, and the explicit stack agreeing with recursion
+     */
+    @Test
+    public void testDeepNesting() throws Exception {
+        int depth = 200_000;
+        var text = new StringBuilder("x = ");
+        for (int i = 0; i < depth; i++)
+            text.append(i % 50_000 == 0 ? "-(" : "("); // parentheses alone add no nodes
+        text.append("y");
+        for (int i = 0; i < depth; i++)
+            text.append(")");
+        text.append(" * 2\n");
+        var ast = new Parser(IncrementalLexer.lex(text.toString())).parse();
+        Assert.assertEquals("x=((0-(0-(0-(0-y))))*2)\n", ast.toString());
+
+        var mixed = "x = -(a + 2 * -(b - c) / (d)) - -e * f + ((g)) - LEFT$(h$, -(1 + 2))\n";
+        var recursive = new Parser(IncrementalLexer.lex(mixed)).parse();
+        var parser = new Parser(IncrementalLexer.lex(mixed));
+        parser.setMaxDepth(0);
+        Assert.assertEquals(recursive.toString(), parser.parse().toString());
+    }
+
+    @Test(expected = Exception.class)
+    public void testDeepUnclosed() throws Exception {
+        var text = "x = " + "(".repeat(100_000) + "1" + ")".repeat(99_999) + "\n";
+        new Parser(IncrementalLexer.lex(text)).parse();
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        var tokens = new Lexer("fizzbuzz.txt").lexBuffer();
+        var sequential = new Parser(tokens).parse().toString();
+        for (int chunkSize : new int[] {1, 5, 1 << 16})
+            Assert.assertEquals(sequential, new Parser(tokens).parseParallel(chunkSize).toString());
+    }
+
+    /**
+     * Labels on their own line stay with their statement
+     */
+    @Test
+    public void testParallelLabel() throws Exception {
+        var tokens = IncrementalLexer.lex("x = 1\n\nloop:\n\nx = x + 1\nIF x < 5 THEN loop\n");
+        Assert.assertEquals("x=1\nloop: x=(x+1)\nIF x<5 THEN loop\n", new Parser(tokens).parseParallel(1).toString());
+    }
+
+    @Test(expected = Exception.class)
+    public void testParallelError() throws Exception {
+        new Parser(IncrementalLexer.lex("x = 1\ny = 2\nz = (3\n")).parseParallel(1);
+    }
+
+    /**
+     * A label with nothing after it is reported at the label, since there's no token left to point at
+     */
+    @Test
+    public void testLabelAtEnd() throws Exception {
+        var standardErr = System.err;
+        var err = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(err));
+        try {
+            Assert.assertThrows(Exception.class, () -> new Parser(IncrementalLexer.lex("x = 1\na:\n")).parse());
+        } finally {
+            System.setErr(standardErr);
+        }
+        Assert.assertEquals("Missing statement after label a at 2:0\n", err.toString());
+    }
+
+    /**
+     * Only the edited line is parsed again, and the links and labels around it are patched
+     */
+    @Test
+    public void testIncrementalEdit() throws Exception {
+        var text = "x = 1\nloop:\nx = x + 1\nIF x < 5 THEN loop\nPRINT x\n";
+        var parser = new IncrementalParser(text);
+        var before = parser.getProgram().getAST().getAST();
+        var first = before.get(0);
+        var print = before.get(3);
+
+        int at = text.indexOf("x = x");
+        var program = parser.edit(at, 9, "x = x + 2\nback: PRINT x");
+        var edited = text.substring(0, at) + "x = x + 2\nback: PRINT x" + text.substring(at + 9);
+        Assert.assertEquals(new Parser(IncrementalLexer.lex(edited)).parse().toString(), program.getAST().toString());
+        var statements = program.getAST().getAST();
+        Assert.assertSame(first, statements.get(0));
+        Assert.assertSame(print, statements.get(4));
+        Assert.assertSame(statements.get(2), statements.get(1).next());
+        Assert.assertSame(statements.get(3), statements.get(2).next());
+        Assert.assertSame(statements.get(2), program.getLabels().get("back"));
+        Assert.assertSame(statements.get(1), program.getLabels().get("loop"));
+
+        var i = new Interpreter(program, true);
+        i.interpret();
+        Assert.assertEquals("[3, 5, 5]", i.getFullIO().toString());
+    }
+
+    /**
+     * An edit that doesn't parse, or repeats a label, leaves the program as it was
+     */
+    @Test
+    public void testIncrementalRejected() throws Exception {
+        var parser = new IncrementalParser("a: x = 1\nb: y = 2\n");
+        Assert.assertThrows(Exception.class, () -> parser.edit(0, 1, "b"));
+        Assert.assertThrows(Exception.class, () -> parser.edit(4, 1, "("));
+        var program = parser.getProgram();
+        Assert.assertEquals("a: x=1\nb: y=2\n", program.getAST().toString());
+        Assert.assertSame(program.getAST().getAST().get(0), program.getLabels().get("a"));
+        Assert.assertEquals("c: y=2\n", parser.edit(0, 10, "c").getAST().toString());
+        Assert.assertEquals(null, parser.getProgram().getLabels().get("b"));
+    }
+
+    /**
+     * Jumps follow their labels through edits, and an edit can't take away a label that's jumped to
+     */
+    @Test
+    public void testIncrementalJumps() throws Exception {
+        var parser = new IncrementalParser("x = 0\nloop: x = x + 1\nIF x < 3 THEN loop\n");
+        Assert.assertThrows(Exception.class, () -> parser.edit(0, 0, "loop: PRINT x\n"));
+        var program = parser.edit(6, 15, "loop: x = x + 2");
+        var statements = program.getAST().getAST();
+        Assert.assertEquals("x=0\nloop: x=(x+2)\nIF x<3 THEN loop\n", program.getAST().toString());
+        Assert.assertSame(statements.get(1), ((IfNode) statements.get(2)).getJump());
+
+        Assert.assertThrows(Exception.class, () -> parser.edit(6, 6, ""));
+        Assert.assertSame(statements.get(1), ((IfNode) parser.getProgram().getAST().getAST().get(2)).getJump());
+    }
+
+    /**
+     * Edits inside loops keep the FORs around them paired, and edits that change how loops nest pair them again
+     */
+    @Test
+    public void testIncrementalLoops() throws Exception {
+        var text = "FOR i = 1 TO 2\nFOR j = 1 TO 2\nPRINT j\nNEXT j\nNEXT i\n";
+        var parser = new IncrementalParser(text);
+        var program = parser.edit(text.indexOf("PRINT"), 7, "NEXT j\nFOR j = 3 TO 4");
+        var statements = program.getAST().getAST();
+        Assert.assertSame(statements.get(2), ((ForNode) statements.get(1)).getMatching());
+        Assert.assertSame(statements.get(4), ((ForNode) statements.get(3)).getMatching());
+        Assert.assertSame(statements.get(5), ((ForNode) statements.get(0)).getMatching());
+
+        Assert.assertThrows(Exception.class, () -> parser.edit(0, 0, "FOR k = 1 TO 2\n"));
+        Assert.assertSame(statements.get(5), ((ForNode) statements.get(0)).getMatching());
+
+        text = "FOR i = 1 TO 2\nFOR j = 1 TO 2\nNEXT j\nFOR j = 3 TO 4\n";
+        program = parser.edit(text.indexOf("NEXT j"), 21, "PRINT j");
+        statements = program.getAST().getAST();
+        Assert.assertEquals(5, statements.size());
+        Assert.assertSame(statements.get(3), ((ForNode) statements.get(1)).getMatching());
+        Assert.assertSame(statements.get(4), ((ForNode) statements.get(0)).getMatching());
+
+        program = parser.edit(text.indexOf("NEXT j"), 7, "PRINT i");
+        Assert.assertSame(statements.get(3), ((ForNode) statements.get(1)).getMatching());
+        Assert.assertSame(statements.get(4), ((ForNode) statements.get(0)).getMatching());
+    }
 }